@@ -0,0 +1,157 @@
+package com.pr0gramm.app.feed;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the compact representation of a {@link FeedItem} and compares its heap usage
+ * with the previous representation, that kept every field as its own object.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FeedItemMemoryTest {
+    private static final int ITEMS = 10_000;
+    private static final int USERS = 500;
+
+    @Test
+    public void pathsRoundTrip() throws IOException {
+        FeedItem item = item(1, true);
+        assertEquals(image(1), item.image());
+        assertEquals(thumb(1), item.thumbnail());
+        assertEquals(fullsize(1), item.fullsize());
+
+        FeedItem decoded = roundTrip(item);
+        assertEquals(item.image(), decoded.image());
+        assertEquals(item.thumbnail(), decoded.thumbnail());
+        assertEquals(item.fullsize(), decoded.fullsize());
+    }
+
+    @Test
+    public void missingFullsizeIsNull() throws IOException {
+        FeedItem item = item(2, false);
+        assertNull(item.fullsize());
+        assertNull(roundTrip(item).fullsize());
+        assertEquals(thumb(2), item.thumbnail());
+    }
+
+    @Test
+    public void measureHeap() {
+        long start = usedHeap();
+        LegacyFeedItem[] legacy = new LegacyFeedItem[ITEMS];
+        for (int idx = 0; idx < ITEMS; idx++) {
+            legacy[idx] = legacyItem(idx, idx % 4 == 0);
+        }
+
+        long legacySize = usedHeap() - start;
+
+        start = usedHeap();
+        FeedItem[] compact = new FeedItem[ITEMS];
+        for (int idx = 0; idx < ITEMS; idx++) {
+            compact[idx] = item(idx, idx % 4 == 0);
+        }
+
+        long compactSize = usedHeap() - start;
+
+        Log.i("FeedItemMemoryTest", String.format(
+                "%d items: previous %d kb (%d bytes per item); compact %d kb (%d bytes per item)",
+                ITEMS, legacySize / 1024, legacySize / ITEMS, compactSize / 1024, compactSize / ITEMS));
+
+        // keep both arrays reachable until measured
+        assertEquals(legacy.length, compact.length);
+    }
+
+    private static FeedItem roundTrip(FeedItem item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        item.writeTo(new DataOutputStream(bytes));
+
+        return new FeedItem(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int idx = 0; idx < 3; idx++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static FeedItem item(int id, boolean withFullsize) {
+        // every string is a new instance, like after parsing a response.
+        return new FeedItem(id, id / 2, image(id), thumb(id), withFullsize ? fullsize(id) : null,
+                user(id), 150, 12, 1, 1480000000 + id, 1, 1052, 1052, false);
+    }
+
+    private static LegacyFeedItem legacyItem(int id, boolean withFullsize) {
+        return new LegacyFeedItem(id, id / 2, image(id), thumb(id), withFullsize ? fullsize(id) : null,
+                user(id), 150, 12, 1, new Instant(1000L * (1480000000 + id)), 1, 1052, 1052, false);
+    }
+
+    private static String image(int id) {
+        return String.format("2016/11/24/%08x%08x.mp4", id * 31, id);
+    }
+
+    private static String thumb(int id) {
+        return String.format("2016/11/24/%08x%08x.jpg", id * 31, id);
+    }
+
+    private static String fullsize(int id) {
+        return String.format("2016/11/24/%08x%08x.png", id * 31, id);
+    }
+
+    private static String user(int id) {
+        return String.format("user%d", id % USERS);
+    }
+
+    /**
+     * The fields of a {@link FeedItem} before it was made compact.
+     */
+    @SuppressWarnings({"unused", "FieldCanBeLocal"})
+    private static final class LegacyFeedItem {
+        private final Instant created;
+        private final String thumb;
+        private final String image;
+        private final String fullsize;
+        private final String user;
+        private final int id;
+        private final int promotedId;
+        private final int width, height;
+        private final short up;
+        private final short down;
+        private final byte mark;
+        private final byte flags;
+        private final boolean audio;
+
+        LegacyFeedItem(int id, int promotedId, String image, String thumb, String fullsize, String user,
+                       int up, int down, int mark, Instant created, int flags, int width, int height, boolean audio) {
+
+            this.id = id;
+            this.promotedId = promotedId;
+            this.image = image;
+            this.thumb = thumb;
+            this.fullsize = fullsize;
+            this.user = user;
+            this.up = (short) up;
+            this.down = (short) down;
+            this.mark = (byte) mark;
+            this.created = created;
+            this.flags = (byte) flags;
+            this.width = width;
+            this.height = height;
+            this.audio = audio;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.pr0gramm.app.parcel;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
+import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.api.pr0gramm.BinaryCodecsApi;
+import com.pr0gramm.app.api.pr0gramm.ImmutableApi;
+import com.pr0gramm.app.parcel.core.BinaryCodec;
+import com.pr0gramm.app.parcel.core.ValueCodec;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the generated codecs of the api types and compares them with the gson based encoding.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BinaryCodecsApiTest {
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void commentRoundTrip() throws IOException {
+        Api.Comment comment = comment(1);
+        assertEquals(comment, roundTrip(BinaryCodecsApi.COMMENT, comment));
+    }
+
+    @Test
+    public void tagRoundTrip() throws IOException {
+        Api.Tag tag = tag(2);
+        Api.Tag decoded = roundTrip(BinaryCodecsApi.TAG, tag);
+
+        // id and confidence are not part of equals
+        assertEquals(tag, decoded);
+        assertEquals(tag.getId(), decoded.getId());
+        assertEquals(tag.getConfidence(), decoded.getConfidence(), 0);
+    }
+
+    @Test
+    public void messageRoundTrip() throws IOException {
+        Api.Message message = ImmutableApi.Message.builder()
+                .id(3)
+                .created(new Instant(1480000000000L))
+                .itemId(4)
+                .mark(2)
+                .message("A message with umlauts: äöü")
+                .name("sender")
+                .score(-5)
+                .senderId(6)
+                .thumbnail(null)
+                .build();
+
+        assertEquals(message, roundTrip(BinaryCodecsApi.MESSAGE, message));
+    }
+
+    @Test
+    public void newCommentRoundTrip() throws IOException {
+        Api.NewComment newComment = ImmutableApi.NewComment.builder()
+                .commentId(7)
+                .comments(comments(3))
+                .build();
+
+        assertEquals(newComment, roundTrip(BinaryCodecsApi.NEW_COMMENT, newComment));
+    }
+
+    @Test
+    public void benchmarkCommentList() throws IOException {
+        List<Api.Comment> comments = comments(500);
+        Type type = new TypeToken<List<Api.Comment>>() {
+        }.getType();
+
+        // warm up both paths
+        for (int idx = 0; idx < 10; idx++) {
+            BinaryCodec.decode(BinaryCodec.encode(comments, type), type);
+            BinaryCodec.decode(BinaryCodec.encode(comments, BinaryCodecsApi.COMMENT_LIST), BinaryCodecsApi.COMMENT_LIST);
+        }
+
+        Stopwatch gsonEncode = Stopwatch.createUnstarted();
+        Stopwatch gsonDecode = Stopwatch.createUnstarted();
+        Stopwatch codecEncode = Stopwatch.createUnstarted();
+        Stopwatch codecDecode = Stopwatch.createUnstarted();
+
+        for (int idx = 0; idx < ROUNDS; idx++) {
+            gsonEncode.start();
+            byte[] gsonBytes = BinaryCodec.encode(comments, type);
+            gsonEncode.stop();
+
+            gsonDecode.start();
+            BinaryCodec.decode(gsonBytes, type);
+            gsonDecode.stop();
+
+            codecEncode.start();
+            byte[] codecBytes = BinaryCodec.encode(comments, BinaryCodecsApi.COMMENT_LIST);
+            codecEncode.stop();
+
+            codecDecode.start();
+            BinaryCodec.decode(codecBytes, BinaryCodecsApi.COMMENT_LIST);
+            codecDecode.stop();
+        }
+
+        Log.i("BinaryCodecsApiTest", String.format(
+                "%d comments, per round: gson encode %dus, decode %dus; codec encode %dus, decode %dus",
+                comments.size(),
+                gsonEncode.elapsed(TimeUnit.MICROSECONDS) / ROUNDS,
+                gsonDecode.elapsed(TimeUnit.MICROSECONDS) / ROUNDS,
+                codecEncode.elapsed(TimeUnit.MICROSECONDS) / ROUNDS,
+                codecDecode.elapsed(TimeUnit.MICROSECONDS) / ROUNDS));
+    }
+
+    private static <T> T roundTrip(ValueCodec<T> codec, T value) throws IOException {
+        return BinaryCodec.decode(BinaryCodec.encode(value, codec), codec);
+    }
+
+    private static Api.Comment comment(long id) {
+        return ImmutableApi.Comment.builder()
+                .id(id)
+                .confidence(0.75f)
+                .name("user" + id)
+                .content("Comment number " + id + " with umlauts: äöü")
+                .created(new Instant(1480000000000L + id))
+                .parent(id / 2)
+                .up(10)
+                .down(2)
+                .mark(1)
+                .build();
+    }
+
+    private static List<Api.Comment> comments(int count) {
+        ImmutableList.Builder<Api.Comment> comments = ImmutableList.builder();
+        for (int idx = 0; idx < count; idx++) {
+            comments.add(comment(idx + 1));
+        }
+
+        return comments.build();
+    }
+
+    private static Api.Tag tag(long id) {
+        return ImmutableApi.Tag.builder()
+                .id(id)
+                .confidence(0.5f)
+                .tag("tag" + id)
+                .build();
+    }
+}
@@ -0,0 +1,199 @@
+package com.pr0gramm.app.services.proxy;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.pr0gramm.app.io.MediaCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams a local file through the {@link NioProxyService} and through a NanoHTTPD server
+ * that answers like the previous proxy did, and compares throughput and cpu time per MB.
+ * Also checks that stalled downloads of the media cache do not delay local files.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProxyBenchmarkTest {
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+    private static final int STALLED_REQUESTS = 8;
+
+    private File file;
+    private MediaCache mediaCache;
+    private NioProxyService proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+
+        file = new File(context.getCacheDir(), "proxy-benchmark.webm");
+        Files.write(content, file);
+
+        mediaCache = new MediaCache(context, new OkHttpClient());
+        proxy = new NioProxyService(mediaCache);
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.close();
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void benchmarkLocalFile() throws IOException {
+        NanoHTTPD nano = new FileServer(file);
+        nano.start();
+
+        try {
+            URL nioUrl = new URL(proxy.proxy(Uri.fromFile(file)).toString());
+            URL nanoUrl = new URL("http://127.0.0.1:" + nano.getListeningPort() + "/file.webm");
+
+            // warm up both servers
+            assertEquals(FILE_SIZE, download(nioUrl));
+            assertEquals(FILE_SIZE, download(nanoUrl));
+
+            Result nio = measure(nioUrl);
+            Result previous = measure(nanoUrl);
+
+            Log.i("ProxyBenchmarkTest", String.format(
+                    "%d MB, per round: nio %s; nanohttpd %s", FILE_SIZE >> 20, nio, previous));
+
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void stalledDownloadsDoNotBlockLocalFiles() throws IOException {
+        // accepts connections, but never answers.
+        ServerSocket stalled = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        List<Socket> waiting = new ArrayList<>();
+        try {
+            for (int idx = 0; idx < STALLED_REQUESTS; idx++) {
+                Uri remote = Uri.parse("http://127.0.0.1:" + stalled.getLocalPort() + "/stalled-" + idx + ".mp4");
+                Uri proxied = proxy.proxy(remote);
+
+                // send the request and leave the connection waiting for the response
+                Socket socket = new Socket(proxied.getHost(), proxied.getPort());
+                socket.getOutputStream().write(("GET " + proxied.getEncodedPath()
+                        + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes(Charsets.US_ASCII));
+
+                waiting.add(socket);
+            }
+
+            Stopwatch watch = Stopwatch.createStarted();
+            assertEquals(FILE_SIZE, download(new URL(proxy.proxy(Uri.fromFile(file)).toString())));
+            assertTrue("Local file was delayed by stalled downloads", watch.elapsed(TimeUnit.SECONDS) < 5);
+
+        } finally {
+            for (Socket socket : waiting) {
+                socket.close();
+            }
+
+            stalled.close();
+        }
+    }
+
+    private static Result measure(URL url) throws IOException {
+        Stopwatch watch = Stopwatch.createStarted();
+        long cpuStart = Process.getElapsedCpuTime();
+
+        for (int idx = 0; idx < ROUNDS; idx++) {
+            assertEquals(FILE_SIZE, download(url));
+        }
+
+        return new Result(
+                watch.elapsed(TimeUnit.MILLISECONDS) / (float) ROUNDS,
+                (Process.getElapsedCpuTime() - cpuStart) / (float) ROUNDS);
+    }
+
+    private static long download(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream input = connection.getInputStream()) {
+            return ByteStreams.exhaust(input);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static final class Result {
+        final float millis;
+        final float cpuMillis;
+
+        Result(float millis, float cpuMillis) {
+            this.millis = millis;
+            this.cpuMillis = cpuMillis;
+        }
+
+        @Override
+        public String toString() {
+            float megabytes = FILE_SIZE / (1024f * 1024f);
+            return String.format("%.0f MB/s, %.2f ms cpu per MB",
+                    1000 * megabytes / millis, cpuMillis / megabytes);
+        }
+    }
+
+    /**
+     * Serves the file like the previous NanoHTTPD based proxy did.
+     */
+    private static final class FileServer extends NanoHTTPD {
+        private final File file;
+
+        FileServer(File file) {
+            super("127.0.0.1", 0);
+            this.file = file;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            try {
+                Response response = newFixedLengthResponse(Response.Status.OK,
+                        "video/webm", new FileInputStream(file), file.length());
+
+                response.setGzipEncoding(false);
+                return response;
+
+            } catch (IOException error) {
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "text/plain", "");
+            }
+        }
+    }
+}
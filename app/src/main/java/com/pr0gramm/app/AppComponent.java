@@ -3,6 +3,7 @@ package com.pr0gramm.app;
 import android.content.SharedPreferences;
 
 import com.google.android.gms.analytics.Tracker;
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.services.DownloadService;
 import com.pr0gramm.app.services.InboxNotificationCanceledReceiver;
 import com.pr0gramm.app.services.MessageReplyReceiver;
@@ -52,6 +53,8 @@ public interface AppComponent {
 
     OkHttpClient okHttpClient();
 
+    MediaCache mediaCache();
+
     DownloadService downloadService();
 
     Tracker googleAnalytics();
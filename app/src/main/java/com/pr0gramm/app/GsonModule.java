@@ -4,6 +4,8 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.pr0gramm.app.api.InstantTypeAdapter;
 import com.pr0gramm.app.api.pr0gramm.GsonAdaptersApi;
+import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.feed.FeedItemTypeAdapter;
 import com.pr0gramm.app.services.GsonAdaptersUpdate;
 import com.pr0gramm.app.services.GsonAdaptersUserService;
 import com.pr0gramm.app.services.config.GsonAdaptersConfig;
@@ -22,6 +24,7 @@ import dagger.Provides;
 public class GsonModule {
     public static final Gson INSTANCE = new GsonBuilder()
             .registerTypeAdapter(Instant.class, new InstantTypeAdapter().nullSafe())
+            .registerTypeAdapter(FeedItem.class, new FeedItemTypeAdapter().nullSafe())
             .registerTypeAdapterFactory(new GsonAdaptersApi())
             .registerTypeAdapterFactory(new GsonAdaptersUpdate())
             .registerTypeAdapterFactory(new GsonAdaptersUserService())
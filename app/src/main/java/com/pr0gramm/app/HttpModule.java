@@ -10,7 +10,10 @@ import com.jakewharton.picasso.OkHttp3Downloader;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.api.pr0gramm.ApiProvider;
 import com.pr0gramm.app.api.pr0gramm.LoginCookieHandler;
-import com.pr0gramm.app.services.proxy.HttpProxyService;
+import com.pr0gramm.app.io.MediaCache;
+import com.pr0gramm.app.services.preloading.ThumbnailPack;
+import com.pr0gramm.app.services.preloading.ThumbnailPackRequestHandler;
+import com.pr0gramm.app.services.proxy.NioProxyService;
 import com.pr0gramm.app.services.proxy.ProxyService;
 import com.pr0gramm.app.util.AndroidUtility;
 import com.pr0gramm.app.util.GuavaPicassoCache;
@@ -95,31 +98,28 @@ public class HttpModule {
 
     @Provides
     @Singleton
-    public ProxyService proxyService(Settings settings, OkHttpClient httpClient) {
-        for (int i = 0; i < 10; i++) {
-            try {
-                HttpProxyService proxy = new HttpProxyService(httpClient);
-                proxy.start();
-
-                // return the proxy
-                return proxy;
-
-            } catch (IOException ioError) {
-                logger.warn("Could not open proxy: {}", ioError.toString());
-            }
-        }
+    public ProxyService proxyService(Settings settings, MediaCache mediaCache) {
+        try {
+            NioProxyService proxy = new NioProxyService(mediaCache);
+            proxy.start();
+
+            // return the proxy
+            return proxy;
 
-        logger.warn("Stop trying, using no proxy now.");
-        return url -> url;
+        } catch (IOException ioError) {
+            logger.warn("Could not open proxy, using no proxy now: {}", ioError.toString());
+            return url -> url;
+        }
     }
 
     @Provides
     @Singleton
-    public Picasso picasso(Context context, Downloader downloader) {
+    public Picasso picasso(Context context, Downloader downloader, ThumbnailPack thumbnailPack) {
         return new Picasso.Builder(context)
                 .defaultBitmapConfig(Bitmap.Config.RGB_565)
                 .memoryCache(GuavaPicassoCache.defaultSizedGuavaCache())
                 .downloader(downloader)
+                .addRequestHandler(new ThumbnailPackRequestHandler(thumbnailPack))
                 .build();
     }
 
@@ -188,6 +188,14 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
         return firstNonNull(Ints.tryParse(value), 0);
     }
 
+    /**
+     * Maximum number of bytes used by preloaded items.
+     */
+    public long preloadBudget() {
+        String value = preferences.getString("pref_preload_budget", "512");
+        return firstNonNull(Ints.tryParse(value), 512) * 1024L * 1024L;
+    }
+
     public boolean useIncognitoBrowser() {
         return preferences.getBoolean("pref_use_incognito_browser", false);
     }
@@ -239,6 +247,13 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
                 .or(VolumeNavigationType.DISABLED);
     }
 
+    public PrefetchPolicy prefetchPolicy() {
+        String pref = preferences.getString("pref_prefetch", "wifi");
+        return Enums
+                .getIfPresent(PrefetchPolicy.class, pref.toUpperCase())
+                .or(PrefetchPolicy.WIFI);
+    }
+
     public boolean showCategoryText() {
         return preferences.getBoolean("pref_show_category_text", true);
     }
@@ -301,4 +316,8 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     public enum VolumeNavigationType {
         DISABLED, UP, DOWN;
     }
+
+    public enum PrefetchPolicy {
+        NEVER, WIFI, ALWAYS;
+    }
 }
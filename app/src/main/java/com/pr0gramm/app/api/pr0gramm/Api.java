@@ -5,6 +5,7 @@ import com.google.gson.annotations.SerializedName;
 import com.pr0gramm.app.feed.FeedItem;
 import com.pr0gramm.app.feed.Nothing;
 import com.pr0gramm.app.services.HasThumbnail;
+import com.pr0gramm.codecs.GenerateCodec;
 
 import org.immutables.gson.Gson;
 import org.immutables.value.Value;
@@ -227,6 +228,7 @@ public interface Api {
     /**
      */
     @Value.Immutable
+    @GenerateCodec
     interface Comment {
         long getId();
 
@@ -257,40 +259,9 @@ public interface Api {
 
         boolean isAtEnd();
 
-        List<Item> getItems();
+        List<FeedItem> getItems();
 
         Optional<String> getError();
-
-        @Value.Immutable
-        interface Item {
-            long getId();
-
-            long getPromoted();
-
-            String getImage();
-
-            String getThumb();
-
-            String getFullsize();
-
-            String getUser();
-
-            int getUp();
-
-            int getDown();
-
-            int getMark();
-
-            int getFlags();
-
-            Optional<Integer> width();
-
-            Optional<Integer> height();
-
-            Optional<Boolean> audio();
-
-            Instant getCreated();
-        }
     }
 
     /**
@@ -368,6 +339,7 @@ public interface Api {
      * A message received from the pr0gramm api.
      */
     @Value.Immutable
+    @GenerateCodec
     abstract class Message implements HasThumbnail {
         public abstract long id();
 
@@ -450,6 +422,7 @@ public interface Api {
     /**
      */
     @Value.Immutable
+    @GenerateCodec
     interface NewComment {
         long getCommentId();
 
@@ -589,6 +562,7 @@ public interface Api {
     /**
      */
     @Value.Immutable
+    @GenerateCodec
     interface Tag {
         @Value.Auxiliary
         long getId();
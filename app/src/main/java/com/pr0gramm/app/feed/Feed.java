@@ -4,12 +4,10 @@ import android.os.Bundle;
 import android.support.annotation.Nullable;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Ordering;
-import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Range;
 import com.pr0gramm.app.api.pr0gramm.Api;
 
 import org.slf4j.Logger;
@@ -19,9 +17,10 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
+import java.util.UUID;
 
 import rx.functions.Action1;
 
@@ -35,15 +34,23 @@ import static java.lang.Math.max;
 public class Feed {
     private static final Logger logger = LoggerFactory.getLogger("Feed");
     public static final String FEED_FIELD_FILTER = "filter";
-    public static final String FEED_FIELD_ITEMS = "items";
+    public static final String FEED_FIELD_SNAPSHOT = "snapshot";
     public static final String FEED_FIELD_CONTENT_TYPE = "contentType";
-    public static final String FEED_FIELD_AT_START = "atStart";
 
-    private final List<FeedItem> items = new ArrayList<>();
+    /**
+     * Number of items around the current position to keep in a snapshot.
+     */
+    private static final int SNAPSHOT_ITEMS = 500;
+
+    private List<FeedItem> items = new ArrayList<>();
+    private final FeedIndex index = new FeedIndex();
 
     private final FeedFilter feedFilter;
     private final ImmutableSet<ContentType> contentType;
 
+    // handle of the snapshot of this feed in the FeedSnapshotStore
+    private String snapshotId = UUID.randomUUID().toString();
+
     private boolean atEnd;
     private boolean atStart;
 
@@ -65,6 +72,7 @@ public class Feed {
 
         this(feedFilter, contentType);
         this.items.addAll(items);
+        this.index.rebuild(this.items);
         this.atStart = atStart;
     }
 
@@ -106,9 +114,23 @@ public class Feed {
 
     public void clear() {
         this.items.clear();
+        this.index.clear();
         event(FeedListener::onRemoveItems);
     }
 
+    /**
+     * Replaces all items of this feed with the items of the provided feed.
+     */
+    public void replace(Api.Feed feed) {
+        checkMainThread();
+
+        atStart = false;
+        atEnd = false;
+        clear();
+
+        merge(feed);
+    }
+
     /**
      * Merges this feed with the provided low level feed representation.
      */
@@ -118,9 +140,11 @@ public class Feed {
         atEnd |= feed.isAtEnd();
         atStart |= feed.isAtStart();
 
-        List<FeedItem> newItems = add(feed);
+        List<FeedItem> newItems = feed.getItems();
+
+        FeedMerge merge = add(newItems);
 
-        if (!itemOrdering.isStrictlyOrdered(items)) {
+        if (feedFilter.getFeedType().sortable() && !itemOrdering.isStrictlyOrdered(items)) {
             logger.warn("Feed is not in order after merging!");
         }
 
@@ -130,7 +154,7 @@ public class Feed {
                     .or(false);
 
             event(listener -> {
-                listener.onNewItems(newItems);
+                listener.onNewItems(newItems, merge.changes());
 
                 if (wrongContentType)
                     listener.onWrongContentType();
@@ -141,50 +165,90 @@ public class Feed {
     /**
      * Adds the items from the provided feed to this instance.
      */
-    private List<FeedItem> add(Api.Feed feed) {
-        ImmutableList<FeedItem> newItems = FluentIterable.from(feed.getItems())
-                .transform(FeedItem::new)
-                .toList();
+    private FeedMerge add(List<FeedItem> newItems) {
+        FeedMerge merge;
 
         // we can not merge some feeds based on their ids
         if (!feedFilter.getFeedType().sortable()) {
-            items.addAll(newItems);
+            merge = FeedMerge.appended(items, newItems);
 
         } else {
-            newItems = itemOrdering.immutableSortedCopy(newItems);
-
-            // merge based on ids.
-            PeekingIterator<FeedItem> source = Iterators.peekingIterator(newItems.iterator());
-            ListIterator<FeedItem> target = items.listIterator();
-
-            while (source.hasNext()) {
-                if (target.hasNext()) {
-                    FeedItem nextTarget = items.get(target.nextIndex());
-
-                    int cmp = itemOrdering.compare(source.peek(), nextTarget);
-                    if (cmp < 0) {
-                        // next target should belong behind this source item, so
-                        // put source item here.
-                        target.add(source.next());
-
-                    } else if (cmp == 0) {
-                        // replace target with new source
-                        target.next();
-                        target.set(source.next());
-
-                    } else {
-                        // don't insert here, try next target
-                        target.next();
-                    }
-
-                } else {
-                    // we have no more target elements, so just add source here.
-                    target.add(source.next());
-                }
+            merge = FeedMerge.sorted(items, itemOrdering.sortedCopy(newItems), itemOrdering);
+        }
+
+        items = merge.items();
+        updateIndex(merge);
+
+        return merge;
+    }
+
+    /**
+     * Updates the index after merging new items. Only the new items are indexed, if they were
+     * added to the start or to the end of the feed. In all other cases the index is rebuilt.
+     */
+    private void updateIndex(FeedMerge merge) {
+        List<FeedChange> inserted = merge.insertedRanges();
+
+        if (inserted.isEmpty() || merge.isAppend()) {
+            for (FeedChange change : inserted) {
+                index.append(items.subList(change.start(), change.start() + change.count()));
             }
+
+        } else if (merge.isPrepend()) {
+            index.prepend(items.subList(0, inserted.get(0).count()));
+
+        } else {
+            index.rebuild(items);
+            return;
         }
 
-        return newItems;
+        // replaced items keep their position, but might have been promoted in the meantime
+        Iterator<FeedItem> previousItems = merge.replacedItems().iterator();
+        for (FeedChange change : merge.replacedRanges()) {
+            for (int idx = change.start(); idx < change.start() + change.count(); idx++) {
+                index.replace(idx, previousItems.next(), items.get(idx));
+            }
+        }
+    }
+
+    /**
+     * Removes all items that are more than {@code keep} positions away from the range between
+     * {@code first} and {@code last}. This is only possible for sortable feeds: The removed
+     * items can be loaded again using the oldest or newest remaining item as a cursor, as the
+     * feed is not at its start or end anymore after removing items.
+     */
+    public void evictOutside(int first, int last, int keep) {
+        checkMainThread();
+
+        if (!feedFilter.getFeedType().sortable())
+            return;
+
+        int stop = Math.min(items.size(), last + keep + 1);
+        if (stop < items.size()) {
+            int count = items.size() - stop;
+            logger.info("Evicting {} old items from the feed", count);
+
+            List<FeedItem> evicted = items.subList(stop, items.size());
+            index.removeLast(evicted);
+            evicted.clear();
+
+            atEnd = false;
+            event(listener -> listener.onItemsEvicted(
+                    new FeedChange(FeedChange.Type.REMOVED, stop, count)));
+        }
+
+        int start = Math.max(0, first - keep);
+        if (start > 0) {
+            logger.info("Evicting {} new items from the feed", start);
+
+            List<FeedItem> evicted = items.subList(0, start);
+            index.removeFirst(evicted);
+            evicted.clear();
+
+            atStart = false;
+            event(listener -> listener.onItemsEvicted(
+                    new FeedChange(FeedChange.Type.REMOVED, 0, start)));
+        }
     }
 
     private long feedTypeId(FeedItem item) {
@@ -203,38 +267,85 @@ public class Feed {
     }
 
     public Optional<Integer> indexOf(long itemId) {
-        for (int idx = 0; idx < items.size(); idx++) {
-            if (itemId == items.get(idx).id()) {
-                return Optional.of(idx);
-            }
-        }
+        int idx = index.indexOf(itemId);
+        return idx >= 0 ? Optional.of(idx) : Optional.absent();
+    }
+
+    /**
+     * Returns true, if an item with the given id is part of this feed.
+     */
+    public boolean contains(long itemId) {
+        return index.indexOf(itemId) >= 0;
+    }
 
-        return Optional.absent();
+    /**
+     * Returns the index of the item with the given feed type dependent id,
+     * see {@link FeedItem#id(FeedType)}.
+     */
+    public Optional<Integer> indexOfFeedTypeId(long feedTypeId) {
+        int idx = feedFilter.getFeedType() == FeedType.PROMOTED
+                ? index.indexOfPromoted(feedTypeId)
+                : index.indexOf(feedTypeId);
+
+        return idx >= 0 ? Optional.of(idx) : Optional.absent();
     }
 
-    public Bundle persist(int idx) {
+    /**
+     * Returns the range of indices of all items between the two given items (inclusive).
+     * If one of the items is not part of this feed, an empty optional is returned.
+     */
+    public Optional<Range<Integer>> indexRange(long firstItemId, long secondItemId) {
+        int first = index.indexOf(firstItemId);
+        int second = index.indexOf(secondItemId);
+        if (first < 0 || second < 0)
+            return Optional.absent();
+
+        return Optional.of(Range.closed(Math.min(first, second), Math.max(first, second)));
+    }
+
+    /**
+     * Stores a snapshot of the items around the given index in the snapshot store. The
+     * returned bundle only contains the filter and a handle to the snapshot, so it stays
+     * small even for large feeds.
+     */
+    public Bundle persist(FeedSnapshotStore store, int idx) {
+        int start = Math.min(items.size(), max(0, idx - SNAPSHOT_ITEMS / 2));
+        int stop = Math.min(items.size(), max(0, idx + SNAPSHOT_ITEMS / 2));
+        store.store(snapshotId, ImmutableList.copyOf(items.subList(start, stop)), atStart && start == 0);
+
         Bundle bundle = new Bundle();
         bundle.putParcelable(FEED_FIELD_FILTER, feedFilter);
         bundle.putInt(FEED_FIELD_CONTENT_TYPE, ContentType.combine(contentType));
-
-        // add a subset of the items
-        int start = Math.min(items.size(), max(0, idx - 100));
-        int stop = Math.min(items.size(), max(0, idx + 100));
-        List<FeedItem> items = this.items.subList(start, stop);
-        bundle.putParcelableArrayList(FEED_FIELD_ITEMS, new ArrayList<>(items));
-        bundle.putBoolean(FEED_FIELD_AT_START, start == 0);
-
+        bundle.putString(FEED_FIELD_SNAPSHOT, snapshotId);
         return bundle;
     }
 
-    @SuppressWarnings("unchecked")
-    public static Feed restore(Bundle bundle) {
+    /**
+     * Restores a feed previously persisted using {@link #persist(FeedSnapshotStore, int)}.
+     * If the snapshot is not available anymore, the restored feed is empty.
+     */
+    public static Feed restore(FeedSnapshotStore store, Bundle bundle) {
         FeedFilter feedFilter = bundle.getParcelable(FEED_FIELD_FILTER);
-        List<FeedItem> items = bundle.getParcelableArrayList(FEED_FIELD_ITEMS);
         Set<ContentType> contentType = ContentType.decompose(bundle.getInt(FEED_FIELD_CONTENT_TYPE));
-        boolean atStart = bundle.getBoolean(FEED_FIELD_AT_START, false);
+        String snapshotId = bundle.getString(FEED_FIELD_SNAPSHOT);
+
+        Optional<FeedSnapshotStore.Snapshot> snapshot = snapshotId != null
+                ? store.load(snapshotId)
+                : Optional.absent();
 
-        return new Feed(feedFilter, contentType, items, atStart);
+        Feed feed;
+        if (snapshot.isPresent()) {
+            feed = new Feed(feedFilter, contentType, snapshot.get().items, snapshot.get().atStart);
+        } else {
+            logger.warn("Snapshot of feed not available, restoring an empty feed");
+            feed = new Feed(feedFilter, contentType);
+        }
+
+        if (snapshotId != null) {
+            feed.snapshotId = snapshotId;
+        }
+
+        return feed;
     }
 
     private final Ordering<FeedItem> itemOrdering = Ordering
@@ -264,15 +375,21 @@ public class Feed {
 
     public interface FeedListener {
         /**
-         * Called after new items are added to this feed.
+         * Called after new items are merged into this feed. The changes describe
+         * the positions that were inserted or replaced by the merge.
          */
-        void onNewItems(List<FeedItem> newItems);
+        void onNewItems(List<FeedItem> newItems, List<FeedChange> changes);
 
         /**
          * Called if items are removed from the feed
          */
         void onRemoveItems();
 
+        /**
+         * Called if items far away from the visible items were evicted from the feed.
+         */
+        void onItemsEvicted(FeedChange removed);
+
         /**
          * This will be called if we try to get a nsfw image with a sfw feed.
          */
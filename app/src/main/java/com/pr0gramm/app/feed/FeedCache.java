@@ -0,0 +1,172 @@
+package com.pr0gramm.app.feed;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.parcel.core.BinaryCodec;
+import com.pr0gramm.app.util.BackgroundScheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import rx.Observable;
+
+import static com.pr0gramm.app.util.AndroidUtility.checkNotMainThread;
+
+/**
+ * Persists the last response for a feed query on disk, so that a feed can be shown
+ * directly after a cold start while the actual request is still running.
+ * The responses are stored using the binary encoding of the {@link BinaryCodec}.
+ */
+@Singleton
+public class FeedCache {
+    private static final Logger logger = LoggerFactory.getLogger("FeedCache");
+
+    private static final long MAX_CACHE_SIZE = 2 * 1024 * 1024;
+
+    private final File directory;
+
+    @Inject
+    public FeedCache(Context context) {
+        this.directory = new File(context.getCacheDir(), "feeds");
+    }
+
+    /**
+     * Returns the cached response for the given query, if there is one and it is
+     * not older than the time to live for the type of the feed.
+     */
+    public Observable<Api.Feed> get(FeedService.FeedQuery query) {
+        long timeToLive = timeToLive(query.feedFilter().getFeedType());
+        if (timeToLive <= 0)
+            return Observable.empty();
+
+        return Observable.fromCallable(() -> read(query, timeToLive))
+                .filter(feed -> feed != null)
+                .onErrorResumeNext(err -> {
+                    logger.warn("Could not read cached feed", err);
+                    return Observable.empty();
+                })
+                .subscribeOn(BackgroundScheduler.instance());
+    }
+
+    /**
+     * Stores the given response for the query in the background.
+     */
+    public void put(FeedService.FeedQuery query, Api.Feed feed) {
+        if (timeToLive(query.feedFilter().getFeedType()) <= 0 || feed.getError().isPresent())
+            return;
+
+        AsyncTask.execute(() -> {
+            try {
+                write(query, feed);
+                trim();
+            } catch (Exception err) {
+                logger.warn("Could not write feed to cache", err);
+            }
+        });
+    }
+
+    private Api.Feed read(FeedService.FeedQuery query, long timeToLive) throws IOException {
+        checkNotMainThread();
+
+        File file = fileOf(query);
+        if (!file.exists())
+            return null;
+
+        if (file.lastModified() < System.currentTimeMillis() - timeToLive) {
+            logger.info("Cached feed {} is too old", file.getName());
+            return null;
+        }
+
+        Stopwatch watch = Stopwatch.createStarted();
+        Api.Feed feed = BinaryCodec.decode(Files.toByteArray(file), Api.Feed.class);
+        logger.info("Reading cached feed with {} items took {}", feed.getItems().size(), watch);
+        return feed;
+    }
+
+    private synchronized void write(FeedService.FeedQuery query, Api.Feed feed) throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create cache directory");
+
+        byte[] bytes = BinaryCodec.encode(feed, Api.Feed.class);
+
+        // write to a temporary file first, so a reader never sees a partial file.
+        File file = fileOf(query);
+        File temp = new File(directory, file.getName() + ".tmp");
+        Files.write(bytes, temp);
+
+        if (!temp.renameTo(file))
+            throw new IOException("Could not rename temporary feed file");
+    }
+
+    /**
+     * Removes the least recently written files until the cache fits into its size limit.
+     */
+    private synchronized void trim() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        // newest files first
+        Arrays.sort(files, (lhs, rhs) -> Longs.compare(rhs.lastModified(), lhs.lastModified()));
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+            if (size > MAX_CACHE_SIZE && file.delete()) {
+                logger.info("Removed cached feed {}", file.getName());
+            }
+        }
+    }
+
+    private File fileOf(FeedService.FeedQuery query) {
+        FeedFilter filter = query.feedFilter();
+        String key = Joiner.on('|').useForNull("").join(
+                filter.getFeedType(),
+                filter.getTags().orNull(),
+                filter.getLikes().orNull(),
+                filter.getUsername().orNull(),
+                ContentType.combine(query.contentTypes()),
+                query.older().orNull(),
+                query.newer().orNull(),
+                query.around().orNull());
+
+        return new File(directory, Hashing.md5().hashUnencodedChars(key).toString());
+    }
+
+    /**
+     * Returns the time in milliseconds a cached response is still shown for a feed of the given
+     * type. Feeds that can not be merged by id are not cached at all, as a cached response
+     * could not be reconciled with the response from the network.
+     */
+    private static long timeToLive(FeedType feedType) {
+        if (!feedType.sortable())
+            return 0;
+
+        switch (feedType) {
+            case NEW:
+            case PREMIUM:
+                return TimeUnit.HOURS.toMillis(1);
+
+            case PROMOTED:
+                return TimeUnit.HOURS.toMillis(6);
+
+            default:
+                return TimeUnit.DAYS.toMillis(1);
+        }
+    }
+}
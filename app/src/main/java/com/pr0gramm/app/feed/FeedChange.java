@@ -0,0 +1,39 @@
+package com.pr0gramm.app.feed;
+
+/**
+ * Describes a range of positions in a {@link Feed} that were changed by a merge.
+ * Positions are given relative to the state of the feed after all previous
+ * changes of the same merge were applied.
+ */
+public final class FeedChange {
+    public enum Type {
+        INSERTED, REPLACED, REMOVED
+    }
+
+    private final Type type;
+    private final int start;
+    private final int count;
+
+    FeedChange(Type type, int start, int count) {
+        this.type = type;
+        this.start = start;
+        this.count = count;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + start + ", " + count + ")";
+    }
+}
@@ -0,0 +1,131 @@
+package com.pr0gramm.app.feed;
+
+import java.util.List;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * Maps item ids and promoted ids of a {@link Feed} to their position in the feed.
+ * <p>
+ * Instead of the position itself, an ordinal is stored for each item. The position
+ * is the ordinal minus the ordinal of the first item. This way, prepending or appending
+ * items to the feed does only touch the new items and not the complete index.
+ */
+class FeedIndex {
+    private static final int NO_ENTRY = Integer.MIN_VALUE;
+
+    private final TLongIntMap byId = newMap();
+    private final TLongIntMap byPromotedId = newMap();
+
+    private int firstOrdinal;
+    private int size;
+
+    /**
+     * Returns the position of the item with the given id, or -1.
+     */
+    int indexOf(long id) {
+        return positionOf(byId.get(id));
+    }
+
+    /**
+     * Returns the position of the item with the given promoted id, or -1.
+     */
+    int indexOfPromoted(long promotedId) {
+        return positionOf(byPromotedId.get(promotedId));
+    }
+
+    void clear() {
+        byId.clear();
+        byPromotedId.clear();
+        firstOrdinal = 0;
+        size = 0;
+    }
+
+    /**
+     * Drops the current index and indexes all of the given items.
+     */
+    void rebuild(List<FeedItem> items) {
+        clear();
+        append(items);
+    }
+
+    /**
+     * Indexes the given items that were added to the end of the feed.
+     */
+    void append(List<FeedItem> items) {
+        for (int idx = 0; idx < items.size(); idx++) {
+            put(items.get(idx), firstOrdinal + size + idx);
+        }
+
+        size += items.size();
+    }
+
+    /**
+     * Indexes the given items that were added to the start of the feed.
+     */
+    void prepend(List<FeedItem> items) {
+        firstOrdinal -= items.size();
+        size += items.size();
+
+        for (int idx = 0; idx < items.size(); idx++) {
+            put(items.get(idx), firstOrdinal + idx);
+        }
+    }
+
+    /**
+     * Removes the given items that were removed from the start of the feed.
+     */
+    void removeFirst(List<FeedItem> items) {
+        for (FeedItem item : items) {
+            remove(item);
+        }
+
+        firstOrdinal += items.size();
+        size -= items.size();
+    }
+
+    /**
+     * Removes the given items that were removed from the end of the feed.
+     */
+    void removeLast(List<FeedItem> items) {
+        for (FeedItem item : items) {
+            remove(item);
+        }
+
+        size -= items.size();
+    }
+
+    /**
+     * Updates the item at the given position without changing any other position.
+     * The mappings of the previous item are removed first, as its promoted id might differ.
+     */
+    void replace(int position, FeedItem previous, FeedItem item) {
+        remove(previous);
+        put(item, firstOrdinal + position);
+    }
+
+    private void put(FeedItem item, int ordinal) {
+        byId.put(item.id(), ordinal);
+
+        if (item.promotedId() > 0) {
+            byPromotedId.put(item.promotedId(), ordinal);
+        }
+    }
+
+    private void remove(FeedItem item) {
+        byId.remove(item.id());
+
+        if (item.promotedId() > 0) {
+            byPromotedId.remove(item.promotedId());
+        }
+    }
+
+    private int positionOf(int ordinal) {
+        return ordinal == NO_ENTRY ? -1 : ordinal - firstOrdinal;
+    }
+
+    private static TLongIntMap newMap() {
+        return new TLongIntHashMap(256, 0.5f, 0L, NO_ENTRY);
+    }
+}
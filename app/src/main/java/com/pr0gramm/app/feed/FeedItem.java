@@ -3,22 +3,33 @@ package com.pr0gramm.app.feed;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import com.pr0gramm.app.api.pr0gramm.Api;
+import com.google.common.base.Strings;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.pr0gramm.app.services.HasThumbnail;
 
 import org.joda.time.Instant;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
- * This is an item in pr0gramm feed item to be displayed. It is backed
- * by the data of an {@link Api.Feed.Item}.
+ * This is an item in pr0gramm feed item to be displayed. It is decoded directly
+ * from the api response by the {@link FeedItemTypeAdapter}.
+ * <p>
+ * As a feed can contain a lot of items, the data is stored in a compact way: The media
+ * paths are stored in one byte array (see {@link MediaPaths}), usernames are shared
+ * between all items and the creation time is stored in seconds.
  */
 public class FeedItem implements Parcelable, HasThumbnail {
-    private final Instant created;
-    private final String thumb;
-    private final String image;
-    private final String fullsize;
+    private static final Interner<String> USERNAMES = Interners.newWeakInterner();
+
+    private final byte[] paths;
     private final String user;
+    private final int created;
     private final int id;
     private final int promotedId;
     private final int width, height;
@@ -28,21 +39,21 @@ public class FeedItem implements Parcelable, HasThumbnail {
     private final byte flags;
     private final boolean audio;
 
-    public FeedItem(Api.Feed.Item item) {
-        id = (int) item.getId();
-        promotedId = (int) item.getPromoted();
-        thumb = item.getThumb();
-        image = item.getImage();
-        fullsize = item.getFullsize();
-        user = item.getUser();
-        up = (short) item.getUp();
-        down = (short) item.getDown();
-        mark = (byte) item.getMark();
-        created = item.getCreated();
-        flags = (byte) item.getFlags();
-        width = item.width().or(0);
-        height = item.height().or(0);
-        audio = item.audio().or(false);
+    FeedItem(int id, int promotedId, String image, String thumb, String fullsize, String user,
+             int up, int down, int mark, int created, int flags, int width, int height, boolean audio) {
+
+        this.id = id;
+        this.promotedId = promotedId;
+        this.paths = encodePaths(image, thumb, fullsize);
+        this.user = internUsername(user);
+        this.up = (short) up;
+        this.down = (short) down;
+        this.mark = (byte) mark;
+        this.created = created;
+        this.flags = (byte) flags;
+        this.width = width;
+        this.height = height;
+        this.audio = audio;
     }
 
     @Override
@@ -57,15 +68,16 @@ public class FeedItem implements Parcelable, HasThumbnail {
     @Override
     @NonNull
     public String thumbnail() {
-        return thumb;
+        return Strings.nullToEmpty(MediaPaths.thumb(paths));
     }
 
     public String image() {
-        return image;
+        return MediaPaths.image(paths);
     }
 
+    @Nullable
     public String fullsize() {
-        return fullsize;
+        return MediaPaths.fullsize(paths);
     }
 
     public String user() {
@@ -85,7 +97,7 @@ public class FeedItem implements Parcelable, HasThumbnail {
     }
 
     public Instant created() {
-        return created;
+        return new Instant(1000L * created);
     }
 
     public int flags() {
@@ -134,13 +146,13 @@ public class FeedItem implements Parcelable, HasThumbnail {
 
         dest.writeInt(this.id);
         dest.writeInt(this.promotedId);
-        dest.writeString(this.thumb);
-        dest.writeString(this.image);
-        dest.writeString(this.fullsize);
+        dest.writeString(thumbnail());
+        dest.writeString(image());
+        dest.writeString(fullsize());
         dest.writeString(this.user);
         dest.writeInt(rating);
         dest.writeByte(mark);
-        dest.writeInt((int) (created.getMillis() / 1000));
+        dest.writeInt(created);
         dest.writeByte(this.flags);
         dest.writeInt(width);
         dest.writeInt(height);
@@ -150,13 +162,14 @@ public class FeedItem implements Parcelable, HasThumbnail {
     FeedItem(Parcel in) {
         this.id = in.readInt();
         this.promotedId = in.readInt();
-        this.thumb = in.readString();
-        this.image = in.readString();
-        this.fullsize = in.readString();
-        this.user = in.readString();
+        String thumb = in.readString();
+        String image = in.readString();
+        String fullsize = in.readString();
+        this.paths = encodePaths(image, thumb, fullsize);
+        this.user = internUsername(in.readString());
         int rating = in.readInt();
         this.mark = in.readByte();
-        this.created = new Instant(1000L * in.readInt());
+        this.created = in.readInt();
         this.flags = in.readByte();
         this.width = in.readInt();
         this.height = in.readInt();
@@ -167,8 +180,55 @@ public class FeedItem implements Parcelable, HasThumbnail {
         this.down = (short) (rating & 0xffff);
     }
 
+    /**
+     * Writes this item in a compact binary form. The media paths are
+     * written as is, without decoding them first.
+     */
+    void writeTo(DataOutput output) throws IOException {
+        output.writeInt(id);
+        output.writeInt(promotedId);
+        output.writeInt(paths.length);
+        output.write(paths);
+        output.writeUTF(Strings.nullToEmpty(user));
+        output.writeShort(up);
+        output.writeShort(down);
+        output.writeByte(mark);
+        output.writeInt(created);
+        output.writeByte(flags);
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeBoolean(audio);
+    }
+
+    /**
+     * Reads an item previously written by {@link #writeTo(DataOutput)}.
+     */
+    FeedItem(DataInput input) throws IOException {
+        this.id = input.readInt();
+        this.promotedId = input.readInt();
+        this.paths = new byte[input.readInt()];
+        input.readFully(this.paths);
+        this.user = internUsername(Strings.emptyToNull(input.readUTF()));
+        this.up = input.readShort();
+        this.down = input.readShort();
+        this.mark = input.readByte();
+        this.created = input.readInt();
+        this.flags = input.readByte();
+        this.width = input.readInt();
+        this.height = input.readInt();
+        this.audio = input.readBoolean();
+    }
+
     public boolean isVideo() {
-        return image.endsWith(".webm") || image.endsWith(".mp4");
+        return MediaPaths.imageEndsWith(paths, ".webm") || MediaPaths.imageEndsWith(paths, ".mp4");
+    }
+
+    private static byte[] encodePaths(String image, String thumb, String fullsize) {
+        return MediaPaths.encode(Strings.nullToEmpty(image), thumb, fullsize);
+    }
+
+    private static String internUsername(String user) {
+        return user == null ? null : USERNAMES.intern(user);
     }
 
     public static final Parcelable.Creator<FeedItem> CREATOR = new Parcelable.Creator<FeedItem>() {
@@ -0,0 +1,125 @@
+package com.pr0gramm.app.feed;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Reads the items of a feed response directly into {@link FeedItem}s, without
+ * creating an intermediate object per item. Unknown fields are skipped.
+ * <p>
+ * The items are written using the same field names as the api uses,
+ * so that feeds can be cached using gson too.
+ */
+public class FeedItemTypeAdapter extends TypeAdapter<FeedItem> {
+    @Override
+    public void write(JsonWriter out, FeedItem item) throws IOException {
+        out.beginObject();
+        out.name("id").value(item.id());
+        out.name("promoted").value(item.promotedId());
+        out.name("image").value(item.image());
+        out.name("thumb").value(item.thumbnail());
+        out.name("fullsize").value(item.fullsize());
+        out.name("user").value(item.user());
+        out.name("up").value(item.up());
+        out.name("down").value(item.down());
+        out.name("mark").value(item.mark());
+        out.name("flags").value(item.flags());
+        out.name("width").value(item.width());
+        out.name("height").value(item.height());
+        out.name("audio").value(item.audio());
+        out.name("created").value(item.created().getMillis() / 1000);
+        out.endObject();
+    }
+
+    @Override
+    public FeedItem read(JsonReader in) throws IOException {
+        int id = 0, promotedId = 0;
+        String image = null, thumb = null, fullsize = null, user = null;
+        int up = 0, down = 0, mark = 0, flags = 0;
+        int width = 0, height = 0;
+        boolean audio = false;
+        int created = 0;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+
+            // the api sends null for some optional values
+            if (in.peek() == JsonToken.NULL) {
+                in.skipValue();
+                continue;
+            }
+
+            switch (name) {
+                case "id":
+                    id = (int) in.nextLong();
+                    break;
+
+                case "promoted":
+                    promotedId = (int) in.nextLong();
+                    break;
+
+                case "image":
+                    image = in.nextString();
+                    break;
+
+                case "thumb":
+                    thumb = in.nextString();
+                    break;
+
+                case "fullsize":
+                    fullsize = in.nextString();
+                    break;
+
+                case "user":
+                    user = in.nextString();
+                    break;
+
+                case "up":
+                    up = in.nextInt();
+                    break;
+
+                case "down":
+                    down = in.nextInt();
+                    break;
+
+                case "mark":
+                    mark = in.nextInt();
+                    break;
+
+                case "flags":
+                    flags = in.nextInt();
+                    break;
+
+                case "width":
+                    width = in.nextInt();
+                    break;
+
+                case "height":
+                    height = in.nextInt();
+                    break;
+
+                case "audio":
+                    audio = in.nextBoolean();
+                    break;
+
+                case "created":
+                    created = (int) in.nextLong();
+                    break;
+
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+
+        in.endObject();
+
+        return new FeedItem(id, promotedId, image, thumb, fullsize, user,
+                up, down, mark, created, flags, width, height, audio);
+    }
+}
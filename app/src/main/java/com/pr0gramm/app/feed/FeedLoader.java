@@ -3,9 +3,16 @@ package com.pr0gramm.app.feed;
 import android.support.annotation.NonNull;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import com.pr0gramm.app.Stats;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.util.BackgroundScheduler;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
 import rx.Observable;
 import rx.Subscription;
 import rx.functions.Action1;
@@ -14,14 +21,46 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * This class handles loading of feed data.
+ * <p>
+ * Pages are requested speculatively, depending on the scroll position and velocity
+ * reported by {@link #onScrolled(int, int, float, int)}. Each direction of the feed
+ * can have a few pages queued up. As each page needs the oldest or newest item of the
+ * previous page as a cursor, the pages of one direction are loaded one after another.
  */
 public class FeedLoader {
+    private static final Logger logger = LoggerFactory.getLogger("FeedLoader");
+
+    /**
+     * Always load the next page, if the user is closer than this to the edge.
+     */
+    private static final int MIN_ITEMS_AHEAD = 12;
+
+    /**
+     * Maximum number of pages to queue up in one direction.
+     */
+    private static final int MAX_PAGES_AHEAD = 3;
+
     private final FeedService feedService;
     private final Feed feed;
     private final Binder binder;
 
+    private final Direction older = new Direction(true);
+    private final Direction newer = new Direction(false);
+
     private Subscription subscription;
 
+    // true while the feed only contains the cached version of the first page.
+    private boolean showsCachedPage;
+
+    // estimates, updated after each page
+    private long pageLatencyMillis = 1500;
+    private int pageSize = 120;
+
+    private boolean waitingAtEdge;
+
+    // number of items to keep around the visible items, zero to keep all items.
+    private int windowSize;
+
     public FeedLoader(@NonNull Binder binder, @NonNull FeedService feedService, @NonNull Feed feed) {
         this.feedService = checkNotNull(feedService, "feedService");
         this.feed = checkNotNull(feed, "feed");
@@ -32,6 +71,15 @@ public class FeedLoader {
         return feed;
     }
 
+    /**
+     * Limits the number of items kept in the feed. Items that are more than the given number
+     * of positions away from the visible items are evicted. They are loaded again like any
+     * other page once the user scrolls back. Use zero to keep all items.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
     public void restart() {
         restart(Optional.<Long>absent());
     }
@@ -41,51 +89,122 @@ public class FeedLoader {
 
         // clear old feed
         this.feed.clear();
+        this.showsCachedPage = false;
 
-        Observable<Api.Feed> response;
-        response = feedService.getFeedItems(ImmutableFeedQuery.builder()
+        FeedService.FeedQuery query = ImmutableFeedQuery.builder()
                 .feedFilter(feed.getFeedFilter())
                 .contentTypes(feed.getContentType())
                 .around(around)
-                .build());
+                .build();
 
-        subscribeTo(response);
+        // show the cached response until the real response arrives.
+        Observable<Page> cached = feedService.getCachedFeedItems(query).map(page -> new Page(page, true));
+        Observable<Page> response = feedService.getFeedItems(query)
+                .map(page -> new Page(page, false))
+                .publish(network -> Observable.merge(cached.takeUntil(network), network));
+
+        subscription = response
+                .unsubscribeOn(BackgroundScheduler.instance())
+                .compose(binder.bind())
+                .doAfterTerminate(() -> subscription = null)
+                .subscribe(this::onFirstPage, binder::onError);
     }
 
-    public void next() {
-        Optional<FeedItem> oldest = feed.oldest();
-        if (feed.isAtEnd() || isLoading() || !oldest.isPresent())
-            return;
+    private void onFirstPage(Page page) {
+        if (showsCachedPage) {
+            // the cached page might be older than a full page, so it would not overlap with
+            // the real response and leave a hole in the feed. It might also contain items that
+            // were deleted in the meantime. Replace it instead of merging.
+            feed.replace(page.feed);
+        } else {
+            merge(page.feed);
+        }
 
-        subscribeTo(feedService.getFeedItems(ImmutableFeedQuery.builder()
-                .feedFilter(feed.getFeedFilter())
-                .contentTypes(feed.getContentType())
-                .older(oldest.get().id(feed.getFeedFilter().getFeedType()))
-                .build()));
+        showsCachedPage = page.cached;
     }
 
+    /**
+     * Loads the next page of older items, if not already loading.
+     */
+    public void next() {
+        older.request(1);
+    }
+
+    /**
+     * Loads the next page of newer items, if not already loading.
+     */
     public void previous() {
-        Optional<FeedItem> newest = feed.newest();
-        if (feed.isAtStart() || isLoading() || !newest.isPresent())
+        newer.request(1);
+    }
+
+    /**
+     * Informs the loader about the visible part of the feed. Depending on the distance to
+     * the edge of the feed and the scroll velocity, pages are requested early enough so
+     * that they are probably available once the user reaches the edge.
+     *
+     * @param firstVisible  Index of the first visible item in the feed
+     * @param lastVisible   Index of the last visible item in the feed
+     * @param rowsPerSecond Current scroll velocity. Positive values scroll towards older items.
+     * @param columnCount   Number of items per row
+     */
+    public void onScrolled(int firstVisible, int lastVisible, float rowsPerSecond, int columnCount) {
+        if (subscription != null || feed.size() == 0)
             return;
 
-        subscribeTo(feedService.getFeedItems(ImmutableFeedQuery.builder()
-                .feedFilter(feed.getFeedFilter())
-                .contentTypes(feed.getContentType())
-                .newer(newest.get().id(feed.getFeedFilter().getFeedType()))
-                .build()));
+        float itemsPerSecond = rowsPerSecond * columnCount;
+
+        int remainingOlder = feed.size() - 1 - lastVisible;
+        int remainingNewer = firstVisible;
+
+        if (!feed.isAtEnd()) {
+            older.request(pagesAhead(remainingOlder, itemsPerSecond));
+        }
+
+        if (!feed.isAtStart()) {
+            newer.request(pagesAhead(remainingNewer, -itemsPerSecond));
+        }
+
+        boolean atEdge = (remainingOlder <= 0 && !feed.isAtEnd())
+                || (remainingNewer <= 0 && !feed.isAtStart());
+
+        if (atEdge && !waitingAtEdge) {
+            // the user reached the end of the loaded items and must wait for the next page.
+            logger.info("Reached an unloaded edge of the feed");
+            Stats.get().incrementCounter("feed.prefetch", "result:miss");
+        }
+
+        waitingAtEdge = atEdge;
+
+        // only evict items if we are not loading, as the running requests
+        // use the current oldest and newest items as cursors.
+        if (windowSize > 0 && feed.size() > 3 * windowSize && !isLoading()) {
+            feed.evictOutside(firstVisible, lastVisible, windowSize);
+        }
     }
 
-    public boolean isLoading() {
-        return subscription != null;
+    /**
+     * Estimates how many pages we need to request to not run out of items
+     * while the user scrolls with the given velocity towards an edge.
+     */
+    private int pagesAhead(int remaining, float itemsPerSecond) {
+        if (remaining < MIN_ITEMS_AHEAD)
+            return 1;
+
+        if (itemsPerSecond <= 0)
+            return 0;
+
+        // number of items the user will scroll past while we load a page. We
+        // use twice the latency to have some safety margin.
+        float itemsDuringLoad = itemsPerSecond * 2 * pageLatencyMillis / 1000.f;
+        if (itemsDuringLoad < remaining)
+            return 0;
+
+        int pages = 1 + (int) ((itemsDuringLoad - remaining) / Math.max(1, pageSize));
+        return Math.min(pages, MAX_PAGES_AHEAD);
     }
 
-    private void subscribeTo(Observable<Api.Feed> response) {
-        subscription = response
-                .unsubscribeOn(BackgroundScheduler.instance())
-                .compose(binder.bind())
-                .doAfterTerminate(() -> subscription = null)
-                .subscribe(this::merge, binder::onError);
+    public boolean isLoading() {
+        return subscription != null || older.isLoading() || newer.isLoading();
     }
 
     private void merge(Api.Feed feed) {
@@ -100,6 +219,124 @@ public class FeedLoader {
             subscription.unsubscribe();
             subscription = null;
         }
+
+        older.cancel();
+        newer.cancel();
+        waitingAtEdge = false;
+    }
+
+    /**
+     * Loads pages in one direction of the feed.
+     */
+    private class Direction {
+        private final boolean older;
+
+        private Subscription subscription;
+        private int pagesRequested;
+        private boolean pageReceived;
+
+        Direction(boolean older) {
+            this.older = older;
+        }
+
+        boolean isLoading() {
+            return subscription != null;
+        }
+
+        /**
+         * Makes sure that at least the given number of pages is queued up.
+         */
+        void request(int pages) {
+            pagesRequested = Math.max(pagesRequested, pages);
+            loadNextPage();
+        }
+
+        void cancel() {
+            pagesRequested = 0;
+
+            if (subscription != null) {
+                subscription.unsubscribe();
+                subscription = null;
+            }
+        }
+
+        private void loadNextPage() {
+            if (pagesRequested <= 0 || isLoading() || FeedLoader.this.subscription != null)
+                return;
+
+            boolean atEdge = older ? feed.isAtEnd() : feed.isAtStart();
+            Optional<FeedItem> cursor = older ? feed.oldest() : feed.newest();
+            if (atEdge || !cursor.isPresent()) {
+                pagesRequested = 0;
+                return;
+            }
+
+            long cursorId = cursor.get().id(feed.getFeedFilter().getFeedType());
+
+            ImmutableFeedQuery.Builder query = ImmutableFeedQuery.builder()
+                    .feedFilter(feed.getFeedFilter())
+                    .contentTypes(feed.getContentType());
+
+            if (older) {
+                query.older(cursorId);
+            } else {
+                query.newer(cursorId);
+            }
+
+            pageReceived = false;
+
+            Stopwatch watch = Stopwatch.createStarted();
+            subscription = feedService.getFeedItems(query.build())
+                    .unsubscribeOn(BackgroundScheduler.instance())
+                    .compose(binder.bind())
+                    .subscribe(page -> onPage(page, watch), this::onError, this::onCompleted);
+        }
+
+        private void onPage(Api.Feed page, Stopwatch watch) {
+            pagesRequested--;
+            pageReceived = true;
+
+            // update our estimates
+            pageLatencyMillis = (3 * pageLatencyMillis + watch.elapsed(TimeUnit.MILLISECONDS)) / 4;
+            if (page.getItems().size() > 0) {
+                pageSize = (3 * pageSize + page.getItems().size()) / 4;
+            }
+
+            if (!waitingAtEdge) {
+                Stats.get().incrementCounter("feed.prefetch", "result:hit");
+            }
+
+            waitingAtEdge = false;
+            merge(page);
+        }
+
+        private void onCompleted() {
+            subscription = null;
+
+            // continue with the next queued page
+            if (pageReceived) {
+                loadNextPage();
+            }
+        }
+
+        private void onError(Throwable error) {
+            subscription = null;
+            pagesRequested = 0;
+            binder.onError(error);
+        }
+    }
+
+    /**
+     * A page of the feed, either from the cache or from the server.
+     */
+    private static class Page {
+        final Api.Feed feed;
+        final boolean cached;
+
+        Page(Api.Feed feed, boolean cached) {
+            this.feed = feed;
+            this.cached = cached;
+        }
     }
 
     public interface Binder {
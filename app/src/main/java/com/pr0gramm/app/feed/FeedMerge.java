@@ -0,0 +1,151 @@
+package com.pr0gramm.app.feed;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merges a page of new items into the items of a feed. Both lists must be sorted
+ * using the same ordering. The merge runs in linear time and writes into a new list,
+ * so no elements need to be shifted around.
+ */
+final class FeedMerge {
+    private final List<FeedItem> items;
+    private final List<FeedChange> inserted = new ArrayList<>();
+    private final List<FeedChange> replaced = new ArrayList<>();
+    private final List<FeedItem> replacedItems = new ArrayList<>();
+
+    private FeedMerge(int capacity) {
+        this.items = new ArrayList<>(capacity);
+    }
+
+    /**
+     * The merged items.
+     */
+    List<FeedItem> items() {
+        return items;
+    }
+
+    /**
+     * All changes in the order in which they need to be applied to the previous list
+     * of items to get the merged list of items.
+     */
+    List<FeedChange> changes() {
+        if (replaced.isEmpty())
+            return inserted;
+
+        List<FeedChange> changes = new ArrayList<>(inserted.size() + replaced.size());
+        changes.addAll(inserted);
+        changes.addAll(replaced);
+        return changes;
+    }
+
+    /**
+     * Returns true, if items were inserted only in one block at the start of the list.
+     */
+    boolean isPrepend() {
+        return inserted.size() == 1 && inserted.get(0).start() == 0;
+    }
+
+    /**
+     * Returns true, if items were inserted only in one block at the end of the list.
+     */
+    boolean isAppend() {
+        if (inserted.size() != 1)
+            return false;
+
+        FeedChange change = inserted.get(0);
+        return change.start() + change.count() == items.size();
+    }
+
+    List<FeedChange> insertedRanges() {
+        return inserted;
+    }
+
+    List<FeedChange> replacedRanges() {
+        return replaced;
+    }
+
+    /**
+     * The previous items that were replaced, in the order of the {@link #replacedRanges()}.
+     */
+    List<FeedItem> replacedItems() {
+        return replacedItems;
+    }
+
+    /**
+     * Merges the sorted new items into the sorted current items. Items that compare as equal
+     * are replaced by the new item.
+     */
+    static FeedMerge sorted(List<FeedItem> current, List<FeedItem> newItems,
+                            Comparator<FeedItem> ordering) {
+
+        FeedMerge merge = new FeedMerge(current.size() + newItems.size());
+
+        int currentIdx = 0, newIdx = 0;
+        while (currentIdx < current.size() && newIdx < newItems.size()) {
+            FeedItem currentItem = current.get(currentIdx);
+            FeedItem newItem = newItems.get(newIdx);
+
+            int cmp = ordering.compare(newItem, currentItem);
+            if (cmp < 0) {
+                merge.add(FeedChange.Type.INSERTED, newItem);
+                newIdx++;
+
+            } else if (cmp == 0) {
+                merge.add(FeedChange.Type.REPLACED, newItem);
+                merge.replacedItems.add(currentItem);
+                currentIdx++;
+                newIdx++;
+
+            } else {
+                merge.items.add(currentItem);
+                currentIdx++;
+            }
+        }
+
+        // only one of those loops will actually add items.
+        while (currentIdx < current.size()) {
+            merge.items.add(current.get(currentIdx++));
+        }
+
+        while (newIdx < newItems.size()) {
+            merge.add(FeedChange.Type.INSERTED, newItems.get(newIdx++));
+        }
+
+        return merge;
+    }
+
+    /**
+     * Appends the new items to the current items without looking at their order.
+     */
+    static FeedMerge appended(List<FeedItem> current, List<FeedItem> newItems) {
+        FeedMerge merge = new FeedMerge(current.size() + newItems.size());
+        merge.items.addAll(current);
+
+        for (FeedItem item : newItems) {
+            merge.add(FeedChange.Type.INSERTED, item);
+        }
+
+        return merge;
+    }
+
+    private void add(FeedChange.Type type, FeedItem item) {
+        List<FeedChange> ranges = type == FeedChange.Type.INSERTED ? inserted : replaced;
+
+        int position = items.size();
+        items.add(item);
+
+        // extend the previous range, if this item is directly behind it.
+        int last = ranges.size() - 1;
+        if (last >= 0) {
+            FeedChange previous = ranges.get(last);
+            if (previous.start() + previous.count() == position) {
+                ranges.set(last, new FeedChange(type, previous.start(), previous.count() + 1));
+                return;
+            }
+        }
+
+        ranges.add(new FeedChange(type, position, 1));
+    }
+}
@@ -16,6 +16,9 @@ import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
@@ -30,22 +33,77 @@ import rx.Observable;
 public class FeedService {
     private static final Logger logger = LoggerFactory.getLogger("FeedService");
 
+    private static final long RESPONSE_RETENTION_MILLIS = 5000;
+
     private final Api mainApi;
     private final ExtraCategoryApi categoryApi;
     private final Settings settings;
     private final ConfigService configService;
+    private final FeedCache feedCache;
+
+    private final Map<FeedQuery, SharedRequest> sharedRequests = new HashMap<>();
 
     @Inject
     public FeedService(Api mainApi, ExtraCategoryApiProvider categoryApi, Settings settings,
-                       ConfigService configService) {
+                       ConfigService configService, FeedCache feedCache) {
 
         this.mainApi = mainApi;
         this.categoryApi = categoryApi.get();
         this.settings = settings;
         this.configService = configService;
+        this.feedCache = feedCache;
     }
 
+    /**
+     * Requests the items for the given query. Identical queries share one request. A
+     * completed response is handed out again for a few seconds to requests with the same query.
+     */
     public Observable<Api.Feed> getFeedItems(FeedQuery query) {
+        return Observable.defer(() -> sharedRequest(query));
+    }
+
+    private Observable<Api.Feed> sharedRequest(FeedQuery query) {
+        synchronized (sharedRequests) {
+            long now = System.currentTimeMillis();
+
+            // remove old responses
+            Iterator<SharedRequest> iterator = sharedRequests.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isExpired(now)) {
+                    iterator.remove();
+                }
+            }
+
+            SharedRequest request = sharedRequests.get(query);
+            if (request == null) {
+                request = new SharedRequest(query);
+                sharedRequests.put(query, request);
+
+            } else {
+                logger.info("Reusing request for query {}", query);
+            }
+
+            return request.response();
+        }
+    }
+
+    private void removeSharedRequest(FeedQuery query, SharedRequest request) {
+        synchronized (sharedRequests) {
+            if (sharedRequests.get(query) == request) {
+                sharedRequests.remove(query);
+            }
+        }
+    }
+
+    /**
+     * Returns the last response for the given query from the local cache. This
+     * might be outdated and must be reconciled with a fresh response.
+     */
+    public Observable<Api.Feed> getCachedFeedItems(FeedQuery query) {
+        return feedCache.get(query);
+    }
+
+    private Observable<Api.Feed> requestFeedItems(FeedQuery query) {
         FeedFilter feedFilter = query.feedFilter();
 
         // filter by feed-type
@@ -129,6 +187,47 @@ public class FeedService {
         Optional<Long> around();
     }
 
+    /**
+     * A request that is shared by all subscribers with the same query. The upstream request
+     * is cancelled once all subscribers unsubscribed before it finished.
+     */
+    private class SharedRequest {
+        private final Observable<Api.Feed> upstream;
+        private final boolean retainable;
+
+        private volatile Api.Feed result;
+        private volatile long completedAt;
+
+        SharedRequest(FeedQuery query) {
+            // the random feed should give new results on every request
+            retainable = query.feedFilter().getFeedType() != FeedType.RANDOM;
+
+            upstream = requestFeedItems(query)
+                    .doOnNext(feed -> {
+                        feedCache.put(query, feed);
+                        result = feed;
+                    })
+                    .doOnCompleted(() -> completedAt = System.currentTimeMillis())
+                    .doOnError(err -> removeSharedRequest(query, this))
+                    .doOnUnsubscribe(() -> {
+                        if (completedAt == 0 || !retainable) {
+                            removeSharedRequest(query, this);
+                        }
+                    })
+                    .replay(1)
+                    .refCount();
+        }
+
+        Observable<Api.Feed> response() {
+            Api.Feed result = this.result;
+            return completedAt != 0 && result != null ? Observable.just(result) : upstream;
+        }
+
+        boolean isExpired(long now) {
+            return completedAt != 0 && (!retainable || now - completedAt > RESPONSE_RETENTION_MILLIS);
+        }
+    }
+
     private static class SearchQuery {
         final boolean advanced;
 
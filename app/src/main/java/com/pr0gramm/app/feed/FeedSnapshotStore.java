@@ -0,0 +1,176 @@
+package com.pr0gramm.app.feed;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Keeps snapshots of feeds outside of the saved instance state. A snapshot is kept in
+ * memory and written to a private file in the background, so it survives the death of
+ * the process. Only a small handle needs to be put into a bundle.
+ */
+@Singleton
+public class FeedSnapshotStore {
+    private static final Logger logger = LoggerFactory.getLogger("FeedSnapshotStore");
+
+    private static final int VERSION = 2;
+    private static final int MAX_SNAPSHOTS = 8;
+
+    private final File directory;
+
+    private final Cache<String, Snapshot> snapshots = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SNAPSHOTS)
+            .build();
+
+    @Inject
+    public FeedSnapshotStore(Context context) {
+        this.directory = new File(context.getFilesDir(), "feed-snapshots");
+    }
+
+    /**
+     * Stores the given items under the given handle. A previous snapshot
+     * with the same handle is replaced.
+     */
+    void store(String handle, ImmutableList<FeedItem> items, boolean atStart) {
+        Snapshot snapshot = new Snapshot(items, atStart);
+        snapshots.put(handle, snapshot);
+
+        AsyncTask.execute(() -> {
+            // skip, if the snapshot was already replaced by a newer one.
+            if (snapshots.getIfPresent(handle) == snapshot) {
+                write(handle, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Gets the snapshot stored with the given handle. If the snapshot is not in memory
+     * anymore, it is read from disk. Returns an empty optional, if the snapshot was evicted.
+     */
+    Optional<Snapshot> load(String handle) {
+        Snapshot snapshot = snapshots.getIfPresent(handle);
+        if (snapshot == null) {
+            snapshot = read(handle);
+            if (snapshot != null) {
+                snapshots.put(handle, snapshot);
+            }
+        }
+
+        return Optional.fromNullable(snapshot);
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and renames it afterwards, so a reader
+     * always sees a complete file. Writes are serialized, readers do not take the lock.
+     */
+    private synchronized void write(String handle, Snapshot snapshot) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            logger.warn("Could not create directory for feed snapshots");
+            return;
+        }
+
+        File file = new File(directory, handle);
+        File temp = new File(directory, handle + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+            output.writeInt(VERSION);
+            output.writeBoolean(snapshot.atStart);
+            output.writeInt(snapshot.items.size());
+            for (FeedItem item : snapshot.items) {
+                item.writeTo(output);
+            }
+
+        } catch (IOException err) {
+            logger.warn("Could not write feed snapshot", err);
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            logger.warn("Could not rename feed snapshot");
+        }
+
+        deleteOldSnapshots();
+    }
+
+    /**
+     * Reads a snapshot without waiting for a running write. This is called from the
+     * main thread when a feed is restored.
+     */
+    private Snapshot read(String handle) {
+        File file = new File(directory, handle);
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+
+            if (input.readInt() != VERSION)
+                return null;
+
+            boolean atStart = input.readBoolean();
+
+            int count = input.readInt();
+            ImmutableList.Builder<FeedItem> items = ImmutableList.builder();
+            for (int idx = 0; idx < count; idx++) {
+                items.add(new FeedItem(input));
+            }
+
+            return new Snapshot(items.build(), atStart);
+
+        } catch (IOException err) {
+            logger.warn("Could not read feed snapshot", err);
+            return null;
+        }
+    }
+
+    /**
+     * Only keep the most recently written snapshots on disk.
+     */
+    private void deleteOldSnapshots() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAX_SNAPSHOTS)
+            return;
+
+        // newest files first
+        Arrays.sort(files, (lhs, rhs) -> Longs.compare(rhs.lastModified(), lhs.lastModified()));
+
+        for (int idx = MAX_SNAPSHOTS; idx < files.length; idx++) {
+            if (!files[idx].delete()) {
+                logger.warn("Could not delete old feed snapshot {}", files[idx]);
+            }
+        }
+    }
+
+    static final class Snapshot {
+        final ImmutableList<FeedItem> items;
+        final boolean atStart;
+
+        Snapshot(ImmutableList<FeedItem> items, boolean atStart) {
+            this.items = items;
+            this.atStart = atStart;
+        }
+    }
+}
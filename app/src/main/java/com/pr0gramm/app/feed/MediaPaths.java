@@ -0,0 +1,141 @@
+package com.pr0gramm.app.feed;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+/**
+ * Stores the image, thumbnail and fullsize path of a {@link FeedItem} in one byte array.
+ * Thumbnail and fullsize path are stored relative to the image path, only the suffix that
+ * differs from the image path is stored.
+ * <p>
+ * Layout: image length, thumb prefix, thumb suffix length, fullsize prefix, fullsize suffix
+ * length - each as an unsigned short - followed by the image, thumb suffix and fullsize suffix.
+ * A missing thumb or fullsize path is stored with a prefix of {@link #MISSING}.
+ */
+final class MediaPaths {
+    private static final int HEADER_SIZE = 10;
+
+    private static final int IMAGE = 0;
+    private static final int THUMB = 2;
+    private static final int FULLSIZE = 6;
+
+    // marks a missing path, a prefix can not be this long.
+    private static final int MISSING = 0xffff;
+
+    private MediaPaths() {
+    }
+
+    static byte[] encode(String image, @Nullable String thumb, @Nullable String fullsize) {
+        byte[] imageBytes = bytesOf(image);
+        byte[] thumbBytes = bytesOf(Strings.nullToEmpty(thumb));
+        byte[] fullsizeBytes = bytesOf(Strings.nullToEmpty(fullsize));
+
+        int thumbPrefix = thumb == null ? MISSING : commonPrefix(imageBytes, thumbBytes);
+        int fullsizePrefix = fullsize == null ? MISSING : commonPrefix(imageBytes, fullsizeBytes);
+
+        int thumbSuffix = thumb == null ? 0 : thumbBytes.length - thumbPrefix;
+        int fullsizeSuffix = fullsize == null ? 0 : fullsizeBytes.length - fullsizePrefix;
+
+        byte[] result = new byte[HEADER_SIZE + imageBytes.length + thumbSuffix + fullsizeSuffix];
+        putShort(result, 0, imageBytes.length);
+        putShort(result, 2, thumbPrefix);
+        putShort(result, 4, thumbSuffix);
+        putShort(result, 6, fullsizePrefix);
+        putShort(result, 8, fullsizeSuffix);
+
+        int offset = HEADER_SIZE;
+        System.arraycopy(imageBytes, 0, result, offset, imageBytes.length);
+
+        offset += imageBytes.length;
+        System.arraycopy(thumbBytes, thumbBytes.length - thumbSuffix, result, offset, thumbSuffix);
+
+        offset += thumbSuffix;
+        System.arraycopy(fullsizeBytes, fullsizeBytes.length - fullsizeSuffix, result, offset, fullsizeSuffix);
+
+        return result;
+    }
+
+    static String image(byte[] paths) {
+        return new String(paths, HEADER_SIZE, getShort(paths, 0), Charsets.UTF_8);
+    }
+
+    @Nullable
+    static String thumb(byte[] paths) {
+        return decode(paths, THUMB);
+    }
+
+    @Nullable
+    static String fullsize(byte[] paths) {
+        return decode(paths, FULLSIZE);
+    }
+
+    /**
+     * Checks if the image path ends with the given ascii suffix without decoding it.
+     */
+    static boolean imageEndsWith(byte[] paths, String suffix) {
+        int length = getShort(paths, 0);
+        if (suffix.length() > length)
+            return false;
+
+        int offset = HEADER_SIZE + length - suffix.length();
+        for (int idx = 0; idx < suffix.length(); idx++) {
+            if (paths[offset + idx] != suffix.charAt(idx)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String decode(byte[] paths, int which) {
+        int imageLength = getShort(paths, 0);
+        int prefix = getShort(paths, which);
+        if (prefix == MISSING)
+            return null;
+
+        int suffix = getShort(paths, which + 2);
+
+        // the fullsize suffix is stored behind the thumb suffix.
+        int suffixOffset = HEADER_SIZE + imageLength;
+        if (which == FULLSIZE) {
+            suffixOffset += getShort(paths, THUMB + 2);
+        }
+
+        if (suffix == 0)
+            return new String(paths, HEADER_SIZE, prefix, Charsets.UTF_8);
+
+        byte[] bytes = new byte[prefix + suffix];
+        System.arraycopy(paths, HEADER_SIZE, bytes, 0, prefix);
+        System.arraycopy(paths, suffixOffset, bytes, prefix, suffix);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static byte[] bytesOf(String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        if (bytes.length >= MISSING)
+            throw new IllegalArgumentException("Path is too long");
+
+        return bytes;
+    }
+
+    private static int commonPrefix(byte[] lhs, byte[] rhs) {
+        int length = Math.min(lhs.length, rhs.length);
+        for (int idx = 0; idx < length; idx++) {
+            if (lhs[idx] != rhs[idx])
+                return idx;
+        }
+
+        return length;
+    }
+
+    private static void putShort(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 8);
+        target[offset + 1] = (byte) value;
+    }
+
+    private static int getShort(byte[] source, int offset) {
+        return ((source[offset] & 0xff) << 8) | (source[offset + 1] & 0xff);
+    }
+}
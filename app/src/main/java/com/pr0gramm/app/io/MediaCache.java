@@ -0,0 +1,616 @@
+package com.pr0gramm.app.io;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pr0gramm.app.BuildConfig;
+import com.pr0gramm.app.services.proxy.NioProxyService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A disk cache for media files, keyed by their url. All parts of the app that need the
+ * bytes of a media file read them from here, so each file is only downloaded once.
+ * <p>
+ * There is at most one download per url. Everyone who requests the url while it is
+ * downloading gets the same entry and reads from its own position, while the bytes arrive.
+ * <p>
+ * While a file is downloaded, it is stored with a ".part" suffix. Once it is complete,
+ * it is renamed to its final name. A rename is atomic, so after a crash a file is either
+ * complete or a partial download. Partial downloads are resumed using a http range request.
+ * Larger files are downloaded using multiple connections, see {@link SegmentedDownloader}.
+ * <p>
+ * The least recently used files are deleted once the cache exceeds its size.
+ * Files of entries that are currently open are never deleted.
+ */
+@Singleton
+public class MediaCache {
+    static final Logger logger = LoggerFactory.getLogger("MediaCache");
+
+    private static final long MAX_CACHE_SIZE = 256 * 1024 * 1024;
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    /**
+     * If a reader starts this far behind the end of the cached data, it reads
+     * its bytes directly from the server instead of waiting for the download.
+     */
+    private static final long MAX_GAP_SIZE = 512 * 1024;
+
+    /**
+     * Shared by all entries, limits the number of concurrent downloads.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(4,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MediaCache-%d").build());
+
+    /**
+     * Prefetched entries download on their own thread, so that they never
+     * block one of the threads above for the download of a visible post.
+     */
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setPriority(Thread.MIN_PRIORITY)
+                    .setNameFormat("MediaCache-Prefetch-%d").build());
+
+    private final OkHttpClient okHttpClient;
+    private final File directory;
+
+    // entries that are currently in use, guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    @Inject
+    public MediaCache(Context context, OkHttpClient okHttpClient) {
+        this.okHttpClient = okHttpClient;
+        this.directory = new File(context.getCacheDir(), "mediaCache");
+    }
+
+    /**
+     * Returns the entry for the given uri. If the file is not yet cached, it is
+     * downloaded in the background. The entry must be closed after use.
+     */
+    public Entry get(Uri uri) {
+        return get(uri, false);
+    }
+
+    /**
+     * Like {@link #get(Uri)}, but a new download runs on a low priority thread
+     * of its own. Used to prefetch media that is not visible yet.
+     */
+    public Entry prefetch(Uri uri) {
+        return get(uri, true);
+    }
+
+    private Entry get(Uri uri, boolean prefetch) {
+        // the local proxy reads from this cache itself, share its entry.
+        uri = originalOf(uri);
+        checkArgument(uri.toString().matches("https?://.*"), "Can not cache %s", uri);
+
+        String key = keyOf(uri);
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, uri.toString());
+                entries.put(key, entry);
+            }
+
+            entry.refCount++;
+            entry.ensureDownloading(prefetch);
+            return entry;
+        }
+    }
+
+    /**
+     * Returns the entry for the given uri, but only if the file is already cached
+     * or currently downloading. The entry must be closed after use.
+     */
+    public Optional<Entry> getIfCached(Uri uri) {
+        String key = keyOf(uri);
+
+        synchronized (this) {
+            if (!entries.containsKey(key) && !new File(directory, key).exists())
+                return Optional.absent();
+
+            return Optional.of(get(uri));
+        }
+    }
+
+    /**
+     * Returns true, if the file of the given uri is currently downloading and
+     * less than the given number of bytes are available ahead of its furthest reader.
+     */
+    public synchronized boolean isBuffering(Uri uri, long bytes) {
+        Entry entry = entries.get(keyOf(uri));
+        return entry != null && entry.downloading && entry.written < entry.readPosition + bytes;
+    }
+
+    /**
+     * Returns true, if the given number of bytes ahead of the furthest reader of the uri
+     * are cached, or if the file is not downloading right now, e.g. because it is complete.
+     */
+    public synchronized boolean hasBuffered(Uri uri, long bytes) {
+        String key = keyOf(uri);
+
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return new File(directory, key).exists();
+
+        return !entry.downloading || entry.written >= entry.readPosition + bytes;
+    }
+
+    private static String keyOf(Uri uri) {
+        return Hashing.md5().hashUnencodedChars(originalOf(uri).toString()).toString();
+    }
+
+    /**
+     * Returns the uri the local proxy would request for the given uri.
+     */
+    private static Uri originalOf(Uri uri) {
+        return NioProxyService.unproxy(uri).or(uri);
+    }
+
+    synchronized void release(Entry entry) {
+        if (--entry.refCount == 0) {
+            entry.stop();
+
+            // a running download removes the entry once it has stopped,
+            // so that no second download writes to the same file.
+            if (!entry.downloading) {
+                remove(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+    }
+
+    /**
+     * Removes the least recently used files until the cache fits into its size limit.
+     */
+    void trim() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        // most recently used files first
+        Arrays.sort(files, (lhs, rhs) -> Longs.compare(rhs.lastModified(), lhs.lastModified()));
+
+        synchronized (this) {
+            long size = 0;
+            for (File file : files) {
+                size += file.length();
+                if (size <= MAX_CACHE_SIZE)
+                    continue;
+
+                // strip the suffix of partial files
+                String key = file.getName().split("\\.", 2)[0];
+                if (!entries.containsKey(key) && file.delete()) {
+                    logger.info("Removed {} from media cache", file.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * A file in the cache. The bytes can be read while the file is still downloading.
+     */
+    public final class Entry implements InputStreamCache, Closeable {
+        final String key;
+        final String url;
+
+        final Object lock = new Object();
+        final File completeFile;
+        final File partialFile;
+
+        // guarded by the MediaCache
+        int refCount;
+        boolean downloading;
+
+        private volatile File file;
+        private volatile boolean stopped;
+
+        volatile long written;
+        volatile long totalSize = -1;
+
+        // the furthest position any reader of this entry has read up to.
+        volatile long readPosition;
+        volatile boolean endOfStream;
+        volatile IOException ioError;
+
+        Entry(String key, String url) {
+            this.key = key;
+            this.url = url;
+            this.completeFile = new File(directory, key);
+            this.partialFile = new File(directory, key + PARTIAL_SUFFIX);
+        }
+
+        /**
+         * Starts the download, if the file is not yet complete.
+         * Must be called while holding the lock of the cache.
+         */
+        void ensureDownloading(boolean prefetch) {
+            stopped = false;
+
+            if (downloading)
+                return;
+
+            if (completeFile.exists()) {
+                // mark as recently used
+                //noinspection ResultOfMethodCallIgnored
+                completeFile.setLastModified(System.currentTimeMillis());
+
+                file = completeFile;
+                written = totalSize = completeFile.length();
+                endOfStream = true;
+                return;
+            }
+
+            // reset state of a previous, failed download
+            file = partialFile;
+            ioError = null;
+            endOfStream = false;
+            downloading = true;
+
+            (prefetch ? PREFETCH_EXECUTOR : EXECUTOR).submit(this::download);
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        /**
+         * Returns a stream of the file starting at the beginning.
+         */
+        @Override
+        public InputStream get() {
+            return inputStreamAt(0);
+        }
+
+        /**
+         * Returns a stream of the file starting at the given position. Reading blocks
+         * until the requested bytes are downloaded. If the position is far ahead of
+         * the download, the bytes are requested from the server using a range request.
+         */
+        public InputStream inputStreamAt(long position) {
+            return new BufferedInputStream(new EntryInputStream(position), 64 * 1024);
+        }
+
+        /**
+         * Returns the size of the file. Blocks until the size is known.
+         */
+        public long totalSize() throws IOException {
+            synchronized (lock) {
+                while (totalSize < 0 && !endOfStream) {
+                    waitForUpdate();
+                }
+            }
+
+            if (totalSize < 0) {
+                throw ioError != null ? ioError : new IOException("Size of file not known");
+            }
+
+            return totalSize;
+        }
+
+        /**
+         * Waits until the file is completely downloaded and returns it.
+         */
+        public File awaitFile() throws IOException {
+            synchronized (lock) {
+                while (!endOfStream) {
+                    waitForUpdate();
+                }
+            }
+
+            if (file != completeFile)
+                throw ioError != null ? ioError : new IOException("Download not complete");
+
+            return completeFile;
+        }
+
+        /**
+         * Waits until the given number of bytes from the start of the file are
+         * available or the download has ended. Returns the number of available bytes.
+         */
+        public long awaitBytes(long count) throws IOException {
+            synchronized (lock) {
+                while (written < count && !endOfStream) {
+                    waitForUpdate();
+                }
+            }
+
+            return written;
+        }
+
+        @Override
+        public int cacheSize() {
+            return (int) written;
+        }
+
+        /**
+         * Returns the fraction of the file that is already cached, or -1 if not yet known.
+         */
+        public float fractionCached() {
+            long totalSize = this.totalSize;
+            return totalSize > 0 ? written / (float) totalSize : -1;
+        }
+
+        /**
+         * Releases this entry. The download is stopped, if no one else uses this entry.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void waitForUpdate() throws IOException {
+            try {
+                lock.wait();
+            } catch (InterruptedException err) {
+                throw new IOException("Got interrupted while waiting for data", err);
+            }
+        }
+
+        private void notifyUpdate() {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        private void download() {
+            try {
+                logger.info("Start caching {}", url);
+                downloadTask();
+
+            } catch (IOException err) {
+                logger.warn("Error while caching {}: {}", url, err.toString());
+                ioError = err;
+
+            } catch (RuntimeException err) {
+                logger.warn("Error while caching " + url, err);
+                ioError = new IOException(err);
+
+            } finally {
+                synchronized (MediaCache.this) {
+                    downloading = false;
+
+                    if (refCount == 0) {
+                        remove(this);
+
+                    } else if (ioError instanceof StoppedException) {
+                        // the entry was requested again while we were stopping.
+                        logger.info("Restarting download of {}", url);
+                        ensureDownloading(false);
+                        return;
+                    }
+                }
+
+                endOfStream = true;
+                notifyUpdate();
+
+                trim();
+            }
+        }
+
+        private void downloadTask() throws IOException {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new IOException("Could not create cache directory");
+
+            SegmentedDownloader downloader = new SegmentedDownloader(okHttpClient, url, partialFile,
+                    new SegmentedDownloader.Listener() {
+                        @Override
+                        public void onSize(long size) {
+                            totalSize = size;
+                        }
+
+                        @Override
+                        public void onProgress(long available) throws IOException {
+                            if (stopped)
+                                throw new StoppedException();
+
+                            written = available;
+                            notifyUpdate();
+                        }
+                    });
+
+            long size = downloader.download();
+
+            // the file is complete now
+            if (!partialFile.renameTo(completeFile))
+                throw new IOException("Could not rename cached file");
+
+            totalSize = written = size;
+            file = completeFile;
+
+            logger.info("Finished caching {} ({} kb)", url, size / 1024);
+        }
+
+        /**
+         * Thrown if the download was stopped because the entry was released.
+         */
+        private class StoppedException extends IOException {
+            StoppedException() {
+                super("Caching of " + url + " was stopped");
+            }
+        }
+
+        /**
+         * Reads the cached file using its own file handle, so there is no shared
+         * state between multiple readers.
+         */
+        private class EntryInputStream extends InputStream {
+            private final byte[] singleByte = new byte[1];
+
+            private RandomAccessFile raf;
+            private InputStream upstream;
+            private long position;
+
+            EntryInputStream(long position) {
+                this.position = position;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int result = read(singleByte, 0, 1);
+                return result > 0 ? singleByte[0] & 0xff : -1;
+            }
+
+            @Override
+            public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+                if (upstream != null || isBehindDownload()) {
+                    int result = openUpstream().read(buffer, byteOffset, byteCount);
+                    if (result > 0)
+                        advance(result);
+
+                    return result;
+                }
+
+                byteCount = waitAndClamp(byteCount);
+                if (byteCount == 0)
+                    return -1;
+
+                if (BuildConfig.DEBUG) {
+                    logger.info("Reading {} bytes at pos {}", byteCount, position);
+                }
+
+                RandomAccessFile raf = open();
+                raf.seek(position);
+                raf.readFully(buffer, byteOffset, byteCount);
+
+                advance(byteCount);
+                return byteCount;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                if (upstream != null) {
+                    long skipped = upstream.skip(n);
+                    advance(skipped);
+                    return skipped;
+                }
+
+                int byteCount = waitAndClamp((int) Math.min(n, Integer.MAX_VALUE));
+                advance(byteCount);
+                return byteCount;
+            }
+
+            private void advance(long byteCount) {
+                position += byteCount;
+
+                // a lost update between two readers only delays the next check.
+                if (position > readPosition) {
+                    readPosition = position;
+                }
+            }
+
+            private int waitAndClamp(int byteCount) throws IOException {
+                // fast path, the bytes are already cached.
+                if (position + byteCount <= written)
+                    return byteCount;
+
+                synchronized (lock) {
+                    while (position + byteCount > written) {
+                        if (endOfStream) {
+                            if (position >= written && ioError != null)
+                                throw ioError;
+
+                            return (int) Math.max(0, written - position);
+                        }
+
+                        waitForUpdate();
+                    }
+                }
+
+                return byteCount;
+            }
+
+            private boolean isBehindDownload() {
+                return !endOfStream && position - written > MAX_GAP_SIZE;
+            }
+
+            /**
+             * Opens a range request starting at the current position. The bytes are
+             * not written to the cache, the download of the entry continues as before.
+             */
+            private InputStream openUpstream() throws IOException {
+                if (upstream == null) {
+                    logger.info("Reading {} directly at {}", url, position);
+
+                    Request request = new Request.Builder().url(url)
+                            .header("Range", "bytes=" + position + "-")
+                            .build();
+
+                    Response response = okHttpClient.newCall(request).execute();
+                    if (!response.isSuccessful()) {
+                        response.body().close();
+                        throw new IOException(String.format("Server responded with %d '%s'",
+                                response.code(), response.message()));
+                    }
+
+                    upstream = response.body().byteStream();
+
+                    // the server does not support range requests
+                    if (response.code() != 206) {
+                        ByteStreams.skipFully(upstream, position);
+                    }
+                }
+
+                return upstream;
+            }
+
+            private RandomAccessFile open() throws IOException {
+                if (raf == null) {
+                    try {
+                        raf = new RandomAccessFile(file, "r");
+                    } catch (FileNotFoundException err) {
+                        // the partial file was renamed, maybe before the new file was published.
+                        raf = new RandomAccessFile(completeFile, "r");
+                    }
+                }
+
+                return raf;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (raf != null) {
+                    raf.close();
+                    raf = null;
+                }
+
+                if (upstream != null) {
+                    upstream.close();
+                    upstream = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.pr0gramm.app.io;
+
+import android.annotation.SuppressLint;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a file into a local file using multiple parallel range requests. A single
+ * connection often can not use the available bandwidth of a mobile connection.
+ * <p>
+ * The download starts with one connection. While it runs, the throughput is measured and
+ * the largest remaining segment is split in half for a new connection, as long as this
+ * increases the throughput. The first segment always continues at the start of the file,
+ * so the bytes at the beginning of the file are available as early as possible.
+ * <p>
+ * If the server does not support range requests, the file is downloaded using one stream.
+ * <p>
+ * While segments are downloaded, the file is preallocated and might contain holes. A marker
+ * file is kept next to it during that time. After the download ends, the file is truncated
+ * to the bytes available from the start and the marker is removed. If the marker still exists
+ * when the next download starts, the app crashed and the partial file is discarded.
+ */
+public final class SegmentedDownloader {
+    private static final Logger logger = LoggerFactory.getLogger("SegmentedDownloader");
+
+    private static final int MAX_SEGMENTS = 4;
+    private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+    private static final long MEASURE_INTERVAL = 500;
+    private static final String MARKER_SUFFIX = ".segments";
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+    /**
+     * Runs the additional segments. The first segment runs on the calling thread.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SegmentedDownloader-%d").build());
+
+    private final OkHttpClient okHttpClient;
+    private final String url;
+    private final File file;
+    private final File marker;
+    private final Listener listener;
+
+    private FileChannel channel;
+
+    // all of the following fields are guarded by this.
+    private final List<Segment> segments = new ArrayList<>();
+    private IOException error;
+    private int running;
+
+    private boolean segmented;
+    private boolean saturated;
+    private boolean settling;
+
+    private long downloaded;
+    private long measureTime;
+    private long measureBytes;
+    private double lastRate;
+
+    public SegmentedDownloader(OkHttpClient okHttpClient, String url, File file, Listener listener) {
+        this.okHttpClient = okHttpClient;
+        this.url = url;
+        this.file = file;
+        this.marker = new File(file.getPath() + MARKER_SUFFIX);
+        this.listener = listener;
+    }
+
+    /**
+     * Downloads the file. If the file already contains the first bytes of a previous
+     * download, only the rest of the file is requested. Returns the size of the file.
+     */
+    @SuppressLint("NewApi")
+    public long download() throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            channel = output.getChannel();
+
+            try {
+                return transfer(output, validPrefix(output));
+
+            } finally {
+                awaitSegments();
+                keepValidPrefix(output);
+            }
+        }
+    }
+
+    private long validPrefix(RandomAccessFile output) throws IOException {
+        if (marker.exists()) {
+            logger.info("Discarding segmented download of {} after a crash", url);
+            output.setLength(0);
+
+            if (!marker.delete())
+                throw new IOException("Could not remove segment marker");
+        }
+
+        return output.length();
+    }
+
+    private void keepValidPrefix(RandomAccessFile output) throws IOException {
+        if (marker.exists()) {
+            output.setLength(available());
+
+            if (!marker.delete())
+                logger.warn("Could not remove segment marker of {}", url);
+        }
+    }
+
+    private long transfer(RandomAccessFile output, long offset) throws IOException {
+        if (offset > 0) {
+            logger.info("Resuming download of {} at {}", url, offset);
+        }
+
+        Call call = newCall(offset);
+        Response response = call.execute();
+        ResponseBody body = response.body();
+
+        long totalSize;
+        if (response.code() == 206) {
+            totalSize = parseTotalSize(response, offset);
+
+        } else if (response.isSuccessful()) {
+            // server sends the complete file
+            offset = 0;
+            output.setLength(0);
+            totalSize = body.contentLength();
+
+        } else {
+            body.close();
+
+            if (response.code() == 416) {
+                // our partial file is not valid anymore.
+                output.setLength(0);
+            }
+
+            throw new IOException(String.format("Server responded with %d '%s'",
+                    response.code(), response.message()));
+        }
+
+        Segment first = new Segment(offset, totalSize >= 0 ? totalSize : Long.MAX_VALUE);
+        first.call = call;
+
+        synchronized (this) {
+            segments.add(first);
+        }
+
+        boolean segmented = response.code() == 206 && totalSize - offset >= 2 * MIN_SEGMENT_SIZE;
+
+        try {
+            if (segmented) {
+                if (!marker.createNewFile() && !marker.exists())
+                    throw new IOException("Could not create segment marker");
+
+                output.setLength(totalSize);
+            }
+
+            listener.onSize(totalSize);
+            listener.onProgress(offset);
+
+        } catch (IOException err) {
+            body.close();
+            throw err;
+        }
+
+        synchronized (this) {
+            this.segmented = segmented;
+            this.measureTime = System.currentTimeMillis();
+            this.running = 1;
+        }
+
+        try {
+            runSegment(first, body);
+        } catch (IOException err) {
+            fail(err);
+        } finally {
+            segmentFinished();
+        }
+
+        awaitSegments();
+
+        synchronized (this) {
+            if (error != null)
+                throw error;
+        }
+
+        long size = available();
+        if (totalSize >= 0 && size != totalSize)
+            throw new IOException("Download of " + url + " is incomplete");
+
+        return size;
+    }
+
+    /**
+     * Copies the body into the file, until the end of the segment is reached.
+     */
+    @SuppressLint("NewApi")
+    private void runSegment(Segment segment, ResponseBody body) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+
+        try (InputStream input = body.byteStream()) {
+            while (true) {
+                long limit;
+                synchronized (this) {
+                    if (error != null)
+                        return;
+
+                    limit = segment.end - segment.position;
+                    if (limit <= 0) {
+                        segment.active = false;
+                        return;
+                    }
+                }
+
+                int count = input.read(buffer, 0, (int) Math.min(buffer.length, limit));
+                if (count < 0) {
+                    if (segment.end != Long.MAX_VALUE)
+                        throw new IOException("Download of " + url + " is incomplete");
+
+                    // we did not know the size, so this is the end of the file.
+                    return;
+                }
+
+                // segments are only split far after the current position,
+                // so writing this chunk can not overlap with another segment.
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+                long position = segment.position;
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+
+                synchronized (this) {
+                    segment.position += count;
+                    downloaded += count;
+
+                    listener.onProgress(available());
+                    maybeAddSegment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures the throughput and splits the largest segment, if the last split increased it.
+     * Must be called while holding the lock.
+     */
+    private void maybeAddSegment() {
+        if (!segmented || saturated || error != null || running >= MAX_SEGMENTS)
+            return;
+
+        long now = System.currentTimeMillis();
+        if (now - measureTime < MEASURE_INTERVAL)
+            return;
+
+        double rate = (downloaded - measureBytes) / (double) (now - measureTime);
+        measureTime = now;
+        measureBytes = downloaded;
+
+        if (settling) {
+            // a new connection needs some time to get up to speed
+            settling = false;
+            return;
+        }
+
+        if (segments.size() > 1 && rate < 1.1 * lastRate) {
+            logger.info("Using {} segments for {}", running, url);
+            saturated = true;
+            return;
+        }
+
+        lastRate = rate;
+
+        Segment largest = null;
+        for (Segment segment : segments) {
+            if (largest == null || segment.remaining() > largest.remaining()) {
+                largest = segment;
+            }
+        }
+
+        if (largest == null || largest.remaining() < 2 * MIN_SEGMENT_SIZE)
+            return;
+
+        long middle = largest.position + largest.remaining() / 2;
+        Segment segment = new Segment(middle, largest.end);
+        largest.end = middle;
+
+        segments.add(segments.indexOf(largest) + 1, segment);
+        running++;
+        settling = true;
+
+        EXECUTOR.execute(() -> startSegment(segment));
+    }
+
+    private void startSegment(Segment segment) {
+        try {
+            Call call;
+            synchronized (this) {
+                if (error != null)
+                    return;
+
+                call = segment.call = newCall(segment.position);
+            }
+
+            Response response = call.execute();
+            if (response.code() != 206) {
+                response.body().close();
+
+                if (giveBack(segment))
+                    return;
+
+                throw new IOException("Server responded with " + response.code() + " for a segment");
+            }
+
+            runSegment(segment, response.body());
+
+        } catch (IOException err) {
+            if (!giveBack(segment)) {
+                fail(err);
+            }
+
+        } finally {
+            segmentFinished();
+        }
+    }
+
+    /**
+     * Gives the bytes of a segment that could not be started back to the
+     * previous segment, if it is still downloading. No more segments are
+     * added after that, as the server does not seem to like it.
+     */
+    private synchronized boolean giveBack(Segment segment) {
+        int idx = segments.indexOf(segment);
+        if (idx <= 0 || segment.position != segment.start)
+            return false;
+
+        Segment previous = segments.get(idx - 1);
+        if (!previous.active || previous.end != segment.start)
+            return false;
+
+        previous.end = segment.end;
+        segments.remove(idx);
+        saturated = true;
+
+        logger.info("Could not open another segment for {}", url);
+        return true;
+    }
+
+    private synchronized void fail(IOException err) {
+        if (error == null) {
+            error = err;
+
+            // stop all other segments as soon as possible
+            for (Segment segment : segments) {
+                if (segment.call != null) {
+                    segment.call.cancel();
+                }
+            }
+        }
+    }
+
+    private synchronized void segmentFinished() {
+        running--;
+        notifyAll();
+    }
+
+    private synchronized void awaitSegments() {
+        boolean interrupted = false;
+        while (running > 0) {
+            try {
+                wait();
+            } catch (InterruptedException err) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Number of bytes available without a hole from the start of the file.
+     */
+    private synchronized long available() {
+        long available = 0;
+        for (Segment segment : segments) {
+            available = segment.position;
+            if (segment.position < segment.end)
+                break;
+        }
+
+        return available;
+    }
+
+    private Call newCall(long position) {
+        // always ask for a range, so we know if the server supports them.
+        Request request = new Request.Builder().url(url)
+                .header("Range", "bytes=" + position + "-")
+                .build();
+
+        return okHttpClient.newCall(request);
+    }
+
+    private static long parseTotalSize(Response response, long offset) {
+        String contentRange = response.header("Content-Range");
+        if (contentRange != null) {
+            Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+            if (matcher.matches()) {
+                return Long.parseLong(matcher.group(1));
+            }
+        }
+
+        long length = response.body().contentLength();
+        return length >= 0 ? offset + length : -1;
+    }
+
+    public interface Listener {
+        /**
+         * Called once the size of the file is known, or with -1 if it is unknown.
+         */
+        void onSize(long totalSize);
+
+        /**
+         * Called with the number of bytes that are available from the start of the file.
+         * Throwing an exception stops the download.
+         */
+        void onProgress(long available) throws IOException;
+    }
+
+    private static final class Segment {
+        final long start;
+        long position;
+        long end;
+        boolean active = true;
+        Call call;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.position = start;
+            this.end = end;
+        }
+
+        long remaining() {
+            return end - position;
+        }
+    }
+}
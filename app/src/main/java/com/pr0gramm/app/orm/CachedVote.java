@@ -3,104 +3,107 @@ package com.pr0gramm.app.orm;
 import android.annotation.TargetApi;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 
-import com.google.common.base.Joiner;
-import com.google.common.base.Optional;
-import com.google.common.collect.Ordering;
 import com.pr0gramm.app.feed.Vote;
+import com.pr0gramm.app.util.Databases;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Locale;
-
-import static com.google.common.collect.Lists.transform;
+import gnu.trove.map.TLongByteMap;
 
 /**
+ * Access to the table of cached votes. All columns are integers: the id of a row
+ * combines the type and the item id, see {@link #voteId(Type, long)}, the type is stored
+ * by its ordinal and the vote by its vote value.
  */
 public class CachedVote {
     private static final Logger logger = LoggerFactory.getLogger("CachedVote");
 
-    public final long itemId;
-    public final Type type;
-    public final Vote vote;
+    private static final String TABLE = "cached_vote_2";
 
-    private CachedVote(long itemId, Type type, Vote vote) {
-        this.itemId = itemId;
-        this.type = type;
-        this.vote = vote;
+    private CachedVote() {
     }
 
-    private static long voteId(Type type, long itemId) {
+    public static long voteId(Type type, long itemId) {
         return itemId * 10 + type.ordinal();
     }
 
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    public static Optional<CachedVote> find(SQLiteDatabase db, Type type, long itemId) {
-        try (Cursor cursor = db.rawQuery("SELECT item_id, type, vote FROM cached_vote WHERE id=?",
-                new String[]{String.valueOf(voteId(type, itemId))})) {
-
-            if (!cursor.moveToNext())
-                return Optional.absent();
-
-            return Optional.of(ofCursor(cursor));
+    /**
+     * Returns the vote of the given vote value. Unknown values are treated as neutral.
+     */
+    public static Vote voteOf(int voteValue) {
+        for (Vote vote : Vote.values()) {
+            if (vote.getVoteValue() == voteValue) {
+                return vote;
+            }
         }
-    }
 
-    private static CachedVote ofCursor(Cursor cursor) {
-        return new CachedVote(
-                cursor.getLong(0),
-                Type.valueOf(cursor.getString(1)),
-                Vote.valueOf(cursor.getString(2)));
+        return Vote.NEUTRAL;
     }
 
+    /**
+     * Puts the vote values of all cached votes into the given map, using the vote id as key.
+     */
     @TargetApi(Build.VERSION_CODES.KITKAT)
-    public static List<CachedVote> find(SQLiteDatabase db, Type type, List<Long> ids) {
-        if (ids.isEmpty())
-            return Collections.emptyList();
-
-        List<Long> sortedIds = Ordering.natural().immutableSortedCopy(ids);
-        String encodedIds = Joiner.on(",").join(transform(sortedIds, id -> voteId(type, id)));
-        try (Cursor cursor = db.rawQuery(
-                "SELECT item_id, type, vote FROM cached_vote WHERE id IN (" + encodedIds + ")",
-                new String[]{})) {
-
-            List<CachedVote> result = new ArrayList<>();
+    public static void readAll(SQLiteDatabase db, TLongByteMap target) {
+        try (Cursor cursor = db.rawQuery("SELECT id, vote FROM " + TABLE, new String[]{})) {
             while (cursor.moveToNext()) {
-                result.add(ofCursor(cursor));
+                target.put(cursor.getLong(0), (byte) cursor.getInt(1));
             }
-
-            return result;
         }
     }
 
+    /**
+     * Compiles the statement to use with {@link #save(SQLiteStatement, long, int)}.
+     */
+    public static SQLiteStatement compileSave(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+                + " (id, item_id, type, vote) VALUES (?, ?, ?, ?)");
+    }
 
-    public static void quickSave(SQLiteDatabase database, Type type, long itemId, Vote vote) {
-        String stmt = String.format(Locale.ROOT,
-                "INSERT OR REPLACE INTO cached_vote (id, item_id, type, vote) VALUES (%d, %d, \"%s\", \"%s\")",
-                voteId(type, itemId), itemId, type.name(), vote.name());
-
-        database.execSQL(stmt);
+    public static void save(SQLiteStatement statement, long voteId, int voteValue) {
+        statement.bindLong(1, voteId);
+        statement.bindLong(2, voteId / 10);
+        statement.bindLong(3, voteId % 10);
+        statement.bindLong(4, voteValue);
+        statement.executeInsert();
     }
 
     public static void clear(SQLiteDatabase database) {
-        database.execSQL("DELETE FROM cached_vote");
+        database.execSQL("DELETE FROM " + TABLE);
     }
 
     public static void prepareDatabase(SQLiteDatabase db) {
-        logger.info("drop cached_vote__uid index, if it exists");
-        db.execSQL("DROP INDEX IF EXISTS cached_vote__uid");
-
-        logger.info("create cached_vote table if it does not exist.");
-        db.execSQL("CREATE TABLE IF NOT EXISTS cached_vote (" +
+        logger.info("create {} table if it does not exist.", TABLE);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
                 "id INTEGER PRIMARY KEY," +
-                "type TEXT," +
-                "vote TEXT," +
-                "item_id INTEGER)");
+                "item_id INTEGER NOT NULL," +
+                "type INTEGER NOT NULL," +
+                "vote INTEGER NOT NULL)");
+
+        if (Databases.tableExists(db, "cached_vote")) {
+            migrateTextTable(db);
+        }
+    }
+
+    /**
+     * Copies the votes of the previous table, which stored type and vote as their names.
+     */
+    private static void migrateTextTable(SQLiteDatabase db) {
+        logger.info("migrate votes from cached_vote to {}", TABLE);
+
+        // the open helper runs this inside of a transaction.
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE + " (id, item_id, type, vote) " +
+                "SELECT id, item_id, " +
+                "CASE type WHEN 'ITEM' THEN 0 WHEN 'COMMENT' THEN 1 ELSE 2 END, " +
+                "CASE vote WHEN 'DOWN' THEN -1 WHEN 'UP' THEN 1 WHEN 'FAVORITE' THEN 2 ELSE 0 END " +
+                "FROM cached_vote WHERE type IN ('ITEM', 'COMMENT', 'TAG') AND item_id IS NOT NULL");
+
+        db.execSQL("DROP INDEX IF EXISTS cached_vote__uid");
+        db.execSQL("DROP TABLE cached_vote");
     }
 
     public enum Type {
@@ -3,8 +3,11 @@ package com.pr0gramm.app.parcel;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.google.common.base.Optional;
 import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.api.pr0gramm.BinaryCodecsApi;
 import com.pr0gramm.app.parcel.core.Parceler;
+import com.pr0gramm.app.parcel.core.ValueCodec;
 
 import java.util.List;
 
@@ -19,6 +22,11 @@ public class CommentListParceler extends Parceler<List<Api.Comment>> {
         super(parcel);
     }
 
+    @Override
+    protected Optional<ValueCodec<List<Api.Comment>>> codec() {
+        return Optional.of(BinaryCodecsApi.COMMENT_LIST);
+    }
+
     public static final Parcelable.Creator<CommentListParceler> CREATOR =
             new LambdaCreator<>(CommentListParceler::new, CommentListParceler[]::new);
 }
@@ -3,8 +3,11 @@ package com.pr0gramm.app.parcel;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.google.common.base.Optional;
 import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.api.pr0gramm.BinaryCodecsApi;
 import com.pr0gramm.app.parcel.core.Parceler;
+import com.pr0gramm.app.parcel.core.ValueCodec;
 
 /**
  */
@@ -18,6 +21,11 @@ public class MessageParceler extends Parceler<Api.Message> {
         super(parcel);
     }
 
+    @Override
+    protected Optional<ValueCodec<Api.Message>> codec() {
+        return Optional.of(BinaryCodecsApi.MESSAGE);
+    }
+
     public static final Parcelable.Creator<MessageParceler> CREATOR =
             new LambdaCreator<>(MessageParceler::new, MessageParceler[]::new);
 }
@@ -2,8 +2,11 @@ package com.pr0gramm.app.parcel;
 
 import android.os.Parcel;
 
+import com.google.common.base.Optional;
 import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.api.pr0gramm.BinaryCodecsApi;
 import com.pr0gramm.app.parcel.core.Parceler;
+import com.pr0gramm.app.parcel.core.ValueCodec;
 
 /**
  */
@@ -16,6 +19,11 @@ public class NewCommentParceler extends Parceler<Api.NewComment> {
         super(parcel);
     }
 
+    @Override
+    protected Optional<ValueCodec<Api.NewComment>> codec() {
+        return Optional.of(BinaryCodecsApi.NEW_COMMENT);
+    }
+
     public static final Creator<NewCommentParceler> CREATOR =
             new LambdaCreator<>(NewCommentParceler::new, NewCommentParceler[]::new);
 }
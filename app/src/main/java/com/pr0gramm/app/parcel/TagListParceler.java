@@ -3,8 +3,11 @@ package com.pr0gramm.app.parcel;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.google.common.base.Optional;
 import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.api.pr0gramm.BinaryCodecsApi;
 import com.pr0gramm.app.parcel.core.Parceler;
+import com.pr0gramm.app.parcel.core.ValueCodec;
 
 import java.util.List;
 
@@ -20,6 +23,11 @@ public class TagListParceler extends Parceler<List<Api.Tag>> {
         super(parcel);
     }
 
+    @Override
+    protected Optional<ValueCodec<List<Api.Tag>>> codec() {
+        return Optional.of(BinaryCodecsApi.TAG_LIST);
+    }
+
     public static final Parcelable.Creator<TagListParceler> CREATOR =
             new LambdaCreator<>(TagListParceler::new, TagListParceler[]::new);
 }
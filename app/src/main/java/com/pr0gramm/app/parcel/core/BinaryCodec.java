@@ -0,0 +1,108 @@
+package com.pr0gramm.app.parcel.core;
+
+import android.annotation.SuppressLint;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.pr0gramm.app.GsonModule;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes values into the compact binary format used by the {@link Parceler}
+ * and decodes them again. Useful to store gson serializable values
+ * outside of a parcel, e.g. on disk.
+ */
+public final class BinaryCodec {
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes the given value of the given type into a binary container.
+     */
+    public static byte[] encode(Object value, Type type) {
+        BinaryWriter writer = new BinaryWriter();
+        GsonModule.INSTANCE.toJson(value, type, writer);
+        writer.close();
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes a value of the given type from a binary container
+     * previously written by {@link #encode(Object, Type)}.
+     */
+    @SuppressLint("NewApi")
+    public static <T> T decode(byte[] input, Type type) throws IOException {
+        try (BinaryReader reader = BinaryReader.from(input)) {
+            return GsonModule.INSTANCE.fromJson(reader, type);
+        }
+    }
+
+    /**
+     * Encodes the given value using the given codec.
+     */
+    public static <T> byte[] encode(T value, ValueCodec<T> codec) {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        try {
+            codec.write(output, value);
+        } catch (IOException err) {
+            // can not happen when writing to memory
+            throw new IllegalStateException(err);
+        }
+
+        byte[] raw = output.toByteArray();
+        if (raw.length <= ContainerFormat.DEFLATE_THRESHOLD) {
+            byte[] result = new byte[raw.length + 1];
+            result[0] = ContainerFormat.DIRECT;
+            System.arraycopy(raw, 0, result, 1, raw.length);
+            return result;
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(raw.length / 2);
+        result.write(ContainerFormat.DIRECT_DEFLATE);
+        try (OutputStream deflateStream = new DeflaterOutputStream(result)) {
+            deflateStream.write(raw);
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        }
+
+        return result.toByteArray();
+    }
+
+    /**
+     * Returns true, if the given input was encoded using a {@link ValueCodec}.
+     */
+    public static boolean isDirect(byte[] input) {
+        return input.length > 0 && (input[0] == ContainerFormat.DIRECT || input[0] == ContainerFormat.DIRECT_DEFLATE);
+    }
+
+    /**
+     * Decodes a value previously written by {@link #encode(Object, ValueCodec)}.
+     */
+    @SuppressLint("NewApi")
+    public static <T> T decode(byte[] input, ValueCodec<T> codec) throws IOException {
+        switch (input[0]) {
+            case ContainerFormat.DIRECT:
+                return codec.read(ByteStreams.newDataInput(input, 1));
+
+            case ContainerFormat.DIRECT_DEFLATE:
+                try (DataInputStream stream = new DataInputStream(new BufferedInputStream(
+                        new InflaterInputStream(new ByteArrayInputStream(input, 1, input.length - 1))))) {
+
+                    return codec.read(stream);
+                }
+
+            default:
+                throw new IOException("Not encoded using a value codec");
+        }
+    }
+}
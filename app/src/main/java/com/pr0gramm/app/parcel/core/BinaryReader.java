@@ -1,37 +1,40 @@
 package com.pr0gramm.app.parcel.core;
 
-import android.annotation.TargetApi;
-import android.os.Build;
-
-import com.google.common.base.Throwables;
-import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteStreams;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.InflaterInputStream;
 
 /**
+ * Reads json values from any version of the binary container format,
+ * see {@link ContainerFormat}.
  */
 class BinaryReader extends JsonReader {
     private final static ProtocolToken[] TOKENS = ProtocolToken.values();
 
     private final List<String> nameCache = new ArrayList<>();
-    private final ByteArrayDataInput input;
+    private final List<String> stringTable = new ArrayList<>();
+    private final DataInput input;
+    private final Closeable source;
     private ProtocolToken next;
 
     /**
      * Creates a new instance that reads a JSON-encoded stream from {@code in}.
      */
-    private BinaryReader(ByteArrayDataInput input) {
+    private BinaryReader(DataInput input, Closeable source) {
         super(new StringReader(""));
         this.input = input;
+        this.source = source;
     }
 
     private ProtocolToken consume(JsonToken token) throws IOException {
@@ -100,8 +103,21 @@ class BinaryReader extends JsonReader {
 
     @Override
     public String nextString() throws IOException {
-        consume(JsonToken.STRING);
-        return input.readUTF();
+        switch (consume(JsonToken.STRING)) {
+            case STRING:
+                return input.readUTF();
+
+            case STRING_DEF:
+                String value = input.readUTF();
+                stringTable.add(value);
+                return value;
+
+            case STRING_REF:
+                return stringTable.get((int) readVarint());
+
+            default:
+                throw new IOException("Invalid string command");
+        }
     }
 
     @Override
@@ -131,11 +147,30 @@ class BinaryReader extends JsonReader {
             case FLOAT:
                 return input.readFloat();
 
+            case VARINT:
+                long value = readVarint();
+                return (value >>> 1) ^ -(value & 1);
+
             default:
                 throw new IOException("Invalid number type");
         }
     }
 
+    /**
+     * Reads an unsigned varint as written by the {@link BinaryWriter}.
+     */
+    private long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = input.readByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+
+        throw new IOException("Varint too long");
+    }
+
     @Override
     public double nextDouble() throws IOException {
         return readNumber().doubleValue();
@@ -154,8 +189,14 @@ class BinaryReader extends JsonReader {
     @Override
     public void close() throws IOException {
         super.close();
-        if (peek() != JsonToken.END_DOCUMENT)
-            throw new IOException("Expected DocumentEnd, got " + next);
+        try {
+            if (peek() != JsonToken.END_DOCUMENT)
+                throw new IOException("Expected DocumentEnd, got " + next);
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
     }
 
     @Override
@@ -217,29 +258,19 @@ class BinaryReader extends JsonReader {
     public static BinaryReader from(byte[] input) {
         switch (input[0]) {
             case ContainerFormat.RAW:
-                return new BinaryReader(ByteStreams.newDataInput(input, 1));
+            case ContainerFormat.RAW_V2:
+                return new BinaryReader(ByteStreams.newDataInput(input, 1), null);
 
             case ContainerFormat.DEFLATE:
-                byte[] uncompressed = inflate(input, 1);
-                return new BinaryReader(ByteStreams.newDataInput(uncompressed));
+            case ContainerFormat.DEFLATE_V2:
+                // inflate while reading, without uncompressing into a byte array first.
+                DataInputStream stream = new DataInputStream(new BufferedInputStream(
+                        new InflaterInputStream(new ByteArrayInputStream(input, 1, input.length - 1))));
+
+                return new BinaryReader(stream, stream);
 
             default:
                 throw new IllegalArgumentException("Invalid container format for binary json");
         }
     }
-
-    /**
-     * Uncompresses gzip compresse data.
-     */
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    private static byte[] inflate(byte[] input, int start) {
-        try {
-            try (InputStream inputStream = new ByteArrayInputStream(input, start, input.length - start)) {
-                return ByteStreams.toByteArray(new InflaterInputStream(inputStream));
-            }
-
-        } catch (IOException err) {
-            throw Throwables.propagate(err);
-        }
-    }
 }
@@ -15,12 +15,16 @@ import java.io.OutputStream;
 import java.util.zip.DeflaterOutputStream;
 
 import gnu.trove.map.hash.TObjectByteHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 
 /**
+ * Writes json values in version 2 of the binary container format,
+ * see {@link ContainerFormat}.
  */
 class BinaryWriter extends JsonWriter {
     private final ByteArrayDataOutput output = ByteStreams.newDataOutput();
     private final TObjectByteHashMap<String> nameCache = new TObjectByteHashMap<>(10, 0, (byte) -1);
+    private final TObjectIntHashMap<String> stringTable = new TObjectIntHashMap<>(16, 0.5f, -1);
 
     BinaryWriter() {
         super(CharStreams.nullWriter());
@@ -73,8 +77,27 @@ class BinaryWriter extends JsonWriter {
 
     @Override
     public JsonWriter value(String value) throws IOException {
-        token(ProtocolToken.STRING);
-        output.writeUTF(value);
+        if (value == null)
+            return nullValue();
+
+        if (value.length() > ContainerFormat.MAX_TABLE_STRING_LENGTH) {
+            token(ProtocolToken.STRING);
+            output.writeUTF(value);
+            return this;
+        }
+
+        int ref = stringTable.get(value);
+        if (ref == stringTable.getNoEntryValue()) {
+            token(ProtocolToken.STRING_DEF);
+            output.writeUTF(value);
+
+            // the reader adds the string to its table too
+            stringTable.put(value, stringTable.size());
+        } else {
+            token(ProtocolToken.STRING_REF);
+            writeVarint(ref);
+        }
+
         return this;
     }
 
@@ -99,8 +122,8 @@ class BinaryWriter extends JsonWriter {
 
     @Override
     public JsonWriter value(long value) throws IOException {
-        token(ProtocolToken.LONG);
-        output.writeLong(value);
+        token(ProtocolToken.VARINT);
+        writeVarint((value << 1) ^ (value >> 63));
         return this;
     }
 
@@ -108,29 +131,31 @@ class BinaryWriter extends JsonWriter {
     public JsonWriter value(Number value) throws IOException {
         Class<? extends Number> clazz = value.getClass();
 
-        if (clazz == Integer.class || clazz == Short.class) {
-            token(ProtocolToken.INTEGER);
-            output.writeInt(value.intValue());
-            return this;
-
-        } else if (clazz == Byte.class) {
-            token(ProtocolToken.BYTE);
-            output.writeByte(value.byteValue());
-            return this;
+        if (clazz == Integer.class || clazz == Short.class || clazz == Byte.class || clazz == Long.class) {
+            return value(value.longValue());
 
         } else if (clazz == Float.class) {
             token(ProtocolToken.FLOAT);
             output.writeFloat(value.floatValue());
             return this;
 
-        } else if (clazz == Long.class) {
-            return value(value.longValue());
-
         } else {
             return value(value.doubleValue());
         }
     }
 
+    /**
+     * Writes an unsigned varint, seven bits per byte, least significant group first.
+     */
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            output.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        output.writeByte((int) value);
+    }
+
     @Override
     public void close() {
         token(ProtocolToken.DOCUMENT_END);
@@ -144,14 +169,14 @@ class BinaryWriter extends JsonWriter {
         byte[] raw = output.toByteArray();
 
         try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(raw.length + 1)) {
-            if (raw.length > 1024) {
-                outputStream.write(ContainerFormat.DEFLATE);
+            if (raw.length > ContainerFormat.DEFLATE_THRESHOLD) {
+                outputStream.write(ContainerFormat.DEFLATE_V2);
                 try (OutputStream deflateStream = new DeflaterOutputStream(outputStream)) {
                     deflateStream.write(raw);
                 }
 
             } else {
-                outputStream.write(ContainerFormat.RAW);
+                outputStream.write(ContainerFormat.RAW_V2);
                 outputStream.write(raw);
             }
 
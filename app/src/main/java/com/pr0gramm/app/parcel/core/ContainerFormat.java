@@ -1,6 +1,11 @@
 package com.pr0gramm.app.parcel.core;
 
 /**
+ * The first byte of an encoded value describes the container format.
+ * <p>
+ * Version 1 formats store numbers with a fixed size. Version 2 formats store integral
+ * numbers as zig-zag varints and can reference short strings that occurred before.
+ * Only version 2 is written, version 1 is still readable.
  */
 class ContainerFormat {
     private ContainerFormat() {
@@ -8,4 +13,23 @@ class ContainerFormat {
 
     static final byte RAW = 0;
     static final byte DEFLATE = 1;
+
+    static final byte RAW_V2 = 2;
+    static final byte DEFLATE_V2 = 3;
+
+    /**
+     * Values written by a {@link ValueCodec} instead of gson.
+     */
+    static final byte DIRECT = 4;
+    static final byte DIRECT_DEFLATE = 5;
+
+    /**
+     * Payloads bigger than this are compressed.
+     */
+    static final int DEFLATE_THRESHOLD = 1024;
+
+    /**
+     * Strings up to this length are put into the string table.
+     */
+    static final int MAX_TABLE_STRING_LENGTH = 64;
 }
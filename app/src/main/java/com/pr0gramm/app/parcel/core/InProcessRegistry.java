@@ -0,0 +1,52 @@
+package com.pr0gramm.app.parcel.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps values written by a {@link Parceler} in memory, so that they can be taken
+ * from here instead of being decoded again, if the parcel is read in the same process.
+ * <p>
+ * Values are referenced weakly and only a limited number of them are kept. A handle
+ * is only valid in the process that created it, the session id is used to detect
+ * handles of a previous process.
+ */
+final class InProcessRegistry {
+    private static final long SESSION = new SecureRandom().nextLong();
+    private static final AtomicLong HANDLES = new AtomicLong();
+
+    private static final Cache<Long, Object> VALUES = CacheBuilder.newBuilder()
+            .maximumSize(64)
+            .weakValues()
+            .build();
+
+    private InProcessRegistry() {
+    }
+
+    static long session() {
+        return SESSION;
+    }
+
+    /**
+     * Registers the given value and returns a new handle for it.
+     */
+    static long register(Object value) {
+        long handle = HANDLES.incrementAndGet();
+        VALUES.put(handle, value);
+        return handle;
+    }
+
+    /**
+     * Looks up the value for the given handle. Returns null, if the handle was
+     * created by a different process or if the value is not available anymore.
+     */
+    static Object lookup(long session, long handle) {
+        if (session != SESSION)
+            return null;
+
+        return VALUES.getIfPresent(handle);
+    }
+}
@@ -1,14 +1,13 @@
 package com.pr0gramm.app.parcel.core;
 
-import android.annotation.SuppressLint;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Stopwatch;
 import com.google.common.reflect.TypeToken;
 import com.pr0gramm.app.BuildConfig;
-import com.pr0gramm.app.GsonModule;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +15,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 
 /**
+ * Wraps a gson serializable value into a {@link Parcelable}.
+ * <p>
+ * The value is written in the binary format of the {@link BinaryCodec}, together with a
+ * handle into the {@link InProcessRegistry}. If the parcel is read in the same process,
+ * e.g. for fragment arguments, the value is taken from the registry and decoding is
+ * skipped. The encoded bytes are kept, so a value is encoded at most once.
  */
 public abstract class Parceler<T> implements Parcelable {
     private static final Logger logger = LoggerFactory.getLogger("Parceler");
@@ -25,6 +30,10 @@ public abstract class Parceler<T> implements Parcelable {
 
     private final T value;
 
+    // handle and encoded form of the value, created on the first write
+    private long handle;
+    private byte[] encoded;
+
     protected Parceler(T value) {
         this.value = value;
     }
@@ -37,6 +46,14 @@ public abstract class Parceler<T> implements Parcelable {
         return typeToken;
     }
 
+    /**
+     * Returns a codec to write the value directly instead of going through gson.
+     * This is called from the constructor, so it must not depend on any state.
+     */
+    protected Optional<ValueCodec<T>> codec() {
+        return Optional.absent();
+    }
+
     public static <R, T extends Parceler<R>> R get(Class<T> clazz, Bundle bundle, String key) {
         T wrapper = bundle.getParcelable(key);
         if (wrapper == null)
@@ -48,14 +65,30 @@ public abstract class Parceler<T> implements Parcelable {
         return wrapper.getValue();
     }
 
-    @SuppressLint("NewApi")
     protected Parceler(Parcel parcel) {
         Stopwatch watch = Stopwatch.createStarted();
 
+        long session = parcel.readLong();
+        long handle = parcel.readLong();
+
         // read binary data from the parcel
         byte[] input = parcel.createByteArray();
-        try (BinaryReader reader = BinaryReader.from(input)) {
-            value = GsonModule.INSTANCE.fromJson(reader, getType().getType());
+
+        // take the value from the registry if it was written in this process.
+        @SuppressWarnings("unchecked")
+        T registered = (T) InProcessRegistry.lookup(session, handle);
+        if (registered != null) {
+            this.value = registered;
+            this.handle = handle;
+            this.encoded = input;
+            return;
+        }
+
+        try {
+            Optional<ValueCodec<T>> codec = codec();
+            value = codec.isPresent() && BinaryCodec.isDirect(input)
+                    ? BinaryCodec.decode(input, codec.get())
+                    : BinaryCodec.decode(input, getType().getType());
 
             if (BuildConfig.DEBUG) {
                 logger.info("reading of {} took {} ({} bytes)", getType(), watch, input.length);
@@ -71,21 +104,26 @@ public abstract class Parceler<T> implements Parcelable {
         return 0;
     }
 
-    @SuppressLint("NewApi")
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         Stopwatch watch = Stopwatch.createStarted();
 
-        BinaryWriter writer = new BinaryWriter();
-        GsonModule.INSTANCE.toJson(value, getType().getType(), writer);
-        writer.close();
+        if (encoded == null) {
+            handle = InProcessRegistry.register(value);
+            Optional<ValueCodec<T>> codec = codec();
+            encoded = codec.isPresent()
+                    ? BinaryCodec.encode(value, codec.get())
+                    : BinaryCodec.encode(value, getType().getType());
+        }
+
+        dest.writeLong(InProcessRegistry.session());
+        dest.writeLong(handle);
 
         // now write serialized data to the parcel
-        byte[] output = writer.toByteArray();
-        dest.writeByteArray(output);
+        dest.writeByteArray(encoded);
 
         if (BuildConfig.DEBUG) {
-            logger.info("writing of {} took {} ({} bytes)", getType(), watch, output.length);
+            logger.info("writing of {} took {} ({} bytes)", getType(), watch, encoded.length);
         }
     }
 }
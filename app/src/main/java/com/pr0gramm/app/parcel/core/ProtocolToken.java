@@ -25,7 +25,14 @@ enum ProtocolToken {
     BOOLEAN_TRUE(JsonToken.BOOLEAN),
     BOOLEAN_FALSE(JsonToken.BOOLEAN),
 
-    DOCUMENT_END(JsonToken.END_DOCUMENT);
+    DOCUMENT_END(JsonToken.END_DOCUMENT),
+
+    // the following tokens are only used in version 2 of the container format.
+    // New tokens must be added to the end to keep the ordinals stable.
+
+    VARINT(JsonToken.NUMBER),
+    STRING_DEF(JsonToken.STRING),
+    STRING_REF(JsonToken.STRING);
 
     final JsonToken token;
 
@@ -0,0 +1,15 @@
+package com.pr0gramm.app.parcel.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads values of one type directly, without going through gson.
+ * A {@link Parceler} uses a codec if it provides one, see {@link Parceler#codec()}.
+ */
+public interface ValueCodec<T> {
+    void write(DataOutput output, T value) throws IOException;
+
+    T read(DataInput input) throws IOException;
+}
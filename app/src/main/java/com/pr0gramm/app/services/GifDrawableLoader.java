@@ -1,10 +1,9 @@
 package com.pr0gramm.app.services;
 
 import android.annotation.SuppressLint;
-import android.content.Context;
 import android.net.Uri;
 
-import com.pr0gramm.app.services.proxy.ProxyService;
+import com.pr0gramm.app.io.MediaCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,22 +11,15 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import okhttp3.Call;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 import pl.droidsonroids.gif.GifDrawable;
 import rx.Observable;
 import rx.Subscriber;
-import rx.subscriptions.Subscriptions;
 
 import static com.pr0gramm.app.util.AndroidUtility.toFile;
-import static java.lang.System.identityHashCode;
 
 /**
  */
@@ -35,13 +27,11 @@ import static java.lang.System.identityHashCode;
 public class GifDrawableLoader {
     private static final Logger logger = LoggerFactory.getLogger("GifLoader");
 
-    private final OkHttpClient okHttpClient;
-    private final File fileCache;
+    private final MediaCache mediaCache;
 
     @Inject
-    public GifDrawableLoader(Context context, OkHttpClient okHttpClient, ProxyService proxyService) {
-        this.okHttpClient = okHttpClient;
-        this.fileCache = context.getCacheDir();
+    public GifDrawableLoader(MediaCache mediaCache) {
+        this.mediaCache = mediaCache;
     }
 
     public Observable<DownloadStatus> load(Uri uri) {
@@ -54,22 +44,13 @@ public class GifDrawableLoader {
                     return;
                 }
 
-                // request the gif file
-                Call call = okHttpClient.newCall(new Request.Builder()
-                        .url(uri.toString())
-                        .build());
-
-                // stop the call on unsubscribe
-                subscriber.add(Subscriptions.create(call::cancel));
-
-                Response response = call.execute();
-                if (response.isSuccessful()) {
-                    loadGifUsingTempFile(subscriber, response);
-
-                } else {
-                    subscriber.onError(new IOException(
-                            "Could not download gif, response code: " + response.code()));
+                MediaCache.Entry entry = mediaCache.get(uri);
+                try {
+                    loadGifUsingCache(subscriber, entry);
+                } finally {
+                    entry.close();
                 }
+
             } catch (Throwable error) {
                 logger.warn("Error during loading", error);
 
@@ -80,60 +61,49 @@ public class GifDrawableLoader {
     }
 
     /**
-     * Loads the data of the gif into a temporary file. The method then
-     * loads the gif from this temporary file. The temporary file is removed
-     * after loading the gif (or on failure).
+     * Waits for the gif to be completely stored in the media cache and publishes the
+     * progress while waiting. The gif is then loaded from the cached file.
      */
     @SuppressLint("NewApi")
-    private void loadGifUsingTempFile(Subscriber<? super GifDrawableLoader.DownloadStatus> subscriber,
-                                      Response response) throws IOException {
-
-        File temporary = new File(fileCache, "tmp" + identityHashCode(subscriber) + ".gif");
-
-        logger.info("storing data into temporary file");
-
-        try (RandomAccessFile storage = new RandomAccessFile(temporary, "rw")) {
-            // remove entry from filesystem now - the system will remove the data
-            // when the stream closes.
-            //noinspection ResultOfMethodCallIgnored
-            temporary.delete();
-
-            // copy data to the file.
-            long lastStatusTime = System.currentTimeMillis();
-            float contentLength = (float) response.body().contentLength();
-            try (InputStream stream = response.body().byteStream()) {
-                int length, count = 0;
-                byte[] buffer = new byte[16 * 1024];
-                while ((length = stream.read(buffer)) >= 0) {
-                    storage.write(buffer, 0, length);
-                    count += length;
-
-                    if (subscriber.isUnsubscribed()) {
-                        logger.info("Stopped because the subscriber unsubscribed");
-                        return;
-                    }
-
-                    // publish download progress every 100ms
-                    long now = System.currentTimeMillis();
-                    if (now - lastStatusTime > 250) {
-                        subscriber.onNext(new DownloadStatus(count / contentLength));
-                        lastStatusTime = now;
-                    }
+    private void loadGifUsingCache(Subscriber<? super GifDrawableLoader.DownloadStatus> subscriber,
+                                   MediaCache.Entry entry) throws IOException {
+
+        long lastStatusTime = System.currentTimeMillis();
+        float contentLength = (float) entry.totalSize();
+
+        // read through the file, this blocks until the bytes are downloaded.
+        try (InputStream stream = entry.get()) {
+            int length, count = 0;
+            byte[] buffer = new byte[16 * 1024];
+            while ((length = stream.read(buffer)) >= 0) {
+                count += length;
+
+                if (subscriber.isUnsubscribed()) {
+                    logger.info("Stopped because the subscriber unsubscribed");
+                    return;
+                }
+
+                // publish download progress every 250ms
+                long now = System.currentTimeMillis();
+                if (now - lastStatusTime > 250) {
+                    subscriber.onNext(new DownloadStatus(count / contentLength));
+                    lastStatusTime = now;
                 }
             }
+        }
 
-            if (subscriber.isUnsubscribed())
-                return;
+        if (subscriber.isUnsubscribed())
+            return;
 
-            try {
-                GifDrawable drawable = new GifDrawable(storage.getFD());
+        try {
+            // the drawable keeps its own handle to the file,
+            // so it can be used even if the file is evicted later.
+            GifDrawable drawable = new GifDrawable(entry.awaitFile());
 
-                // closing is now delegated to the drawable.
-                subscriber.onNext(new DownloadStatus(drawable));
-                subscriber.onCompleted();
-            } catch (Throwable error) {
-                subscriber.onError(error);
-            }
+            subscriber.onNext(new DownloadStatus(drawable));
+            subscriber.onCompleted();
+        } catch (Throwable error) {
+            subscriber.onError(error);
         }
     }
 
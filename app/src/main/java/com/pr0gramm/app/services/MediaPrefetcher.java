@@ -0,0 +1,244 @@
+package com.pr0gramm.app.services;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.feed.Feed;
+import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.MediaCache;
+import com.pr0gramm.app.services.preloading.PreloadManager;
+import com.pr0gramm.app.util.AndroidUtility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Downloads the media of the posts next to the current post in a pager into the
+ * {@link MediaCache}, so that swiping to the next post does not start with an empty buffer.
+ * <p>
+ * Only one item is prefetched at a time, and only while the download of the current post
+ * is well ahead of its player. The prefetch downloads in chunks and pauses whenever the
+ * current post starts buffering again, so it does not take bandwidth from the visible post.
+ * Prefetch downloads run on their own thread in the {@link MediaCache}.
+ */
+@Singleton
+public class MediaPrefetcher {
+    private static final Logger logger = LoggerFactory.getLogger("MediaPrefetcher");
+
+    /**
+     * Number of items to prefetch in the direction of the last swipe.
+     */
+    private static final int ITEM_COUNT = 2;
+
+    /**
+     * Of videos, only the first bytes are prefetched.
+     */
+    private static final long VIDEO_PREFIX_SIZE = 1024 * 1024;
+
+    /**
+     * The current post is buffering, while its download is less than
+     * this many bytes ahead of its player.
+     */
+    private static final long CURRENT_BUFFER_SIZE = 512 * 1024;
+
+    /**
+     * Between two chunks, the prefetch checks if the current post is buffering.
+     */
+    private static final long CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Time to wait for the current post to open its media.
+     */
+    private static final long CURRENT_OPEN_TIMEOUT = 5000;
+
+    private static final long POLL_INTERVAL = 250;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setPriority(Thread.MIN_PRIORITY)
+            .setNameFormat("MediaPrefetcher-%d")
+            .build());
+
+    private final Context context;
+    private final Settings settings;
+    private final MediaCache mediaCache;
+    private final PreloadManager preloadManager;
+
+    // guarded by this
+    private int lastPosition = -1;
+    private int direction = 1;
+    private Future<?> task;
+
+    @Inject
+    public MediaPrefetcher(Context context, Settings settings,
+                           MediaCache mediaCache, PreloadManager preloadManager) {
+
+        this.context = context;
+        this.settings = settings;
+        this.mediaCache = mediaCache;
+        this.preloadManager = preloadManager;
+    }
+
+    /**
+     * Should be called if the item at the given position of the feed became the current item.
+     * Cancels the prefetch of the previous position and prefetches the neighbours of the
+     * current item in the direction of the swipe.
+     */
+    public synchronized void update(Feed feed, int position) {
+        if (position == lastPosition)
+            return;
+
+        if (lastPosition >= 0) {
+            int newDirection = position > lastPosition ? 1 : -1;
+            if (newDirection != direction) {
+                logger.info("Swipe direction changed, canceling prefetch");
+                direction = newDirection;
+            }
+        }
+
+        lastPosition = position;
+        cancelTask();
+
+        if (!isAllowed())
+            return;
+
+        // a preloaded post does not need any bandwidth.
+        FeedItem currentItem = feed.at(position);
+        Uri current = preloadManager.exists(currentItem.id())
+                ? null : UriHelper.of(context).noPreload().media(currentItem);
+
+        List<FeedItem> items = new ArrayList<>();
+        for (int idx = 1; idx <= ITEM_COUNT; idx++) {
+            int neighbour = position + direction * idx;
+            if (neighbour >= 0 && neighbour < feed.size()) {
+                FeedItem item = feed.at(neighbour);
+                if (!preloadManager.exists(item.id())) {
+                    items.add(item);
+                }
+            }
+        }
+
+        if (!items.isEmpty()) {
+            task = executor.submit(() -> prefetch(current, items));
+        }
+    }
+
+    /**
+     * Stops the current prefetch, e.g. because the pager is not visible anymore.
+     */
+    public synchronized void cancel() {
+        lastPosition = -1;
+        cancelTask();
+    }
+
+    private void cancelTask() {
+        if (task != null) {
+            task.cancel(true);
+            task = null;
+        }
+    }
+
+    private boolean isAllowed() {
+        switch (settings.prefetchPolicy()) {
+            case ALWAYS:
+                return true;
+
+            case WIFI:
+                return !AndroidUtility.isOnMobile(context);
+
+            default:
+                return false;
+        }
+    }
+
+    private void prefetch(@Nullable Uri current, List<FeedItem> items) {
+        UriHelper.NoPreload uriHelper = UriHelper.of(context).noPreload();
+
+        try {
+            for (FeedItem item : items) {
+                Uri uri = uriHelper.media(item);
+                logger.info("Prefetching {}", uri);
+
+                long target = item.isVideo() ? VIDEO_PREFIX_SIZE : Long.MAX_VALUE;
+                while (!prefetchChunks(current, uri, target)) {
+                    logger.info("Pausing prefetch of {}", uri);
+                }
+            }
+
+        } catch (InterruptedException ignored) {
+            // prefetch was canceled
+
+        } catch (IOException err) {
+            if (!(Throwables.getRootCause(err) instanceof InterruptedException)) {
+                logger.warn("Could not prefetch media: {}", err.toString());
+            }
+        }
+    }
+
+    /**
+     * Downloads the given uri chunk by chunk, until the target number of bytes are available
+     * or the download ended. Returns false, if the download was paused because the current
+     * post started buffering. Closing the entry stops the download, if the post was not opened
+     * in the meantime. The next call resumes the partial download.
+     */
+    @SuppressLint("NewApi")
+    private boolean prefetchChunks(@Nullable Uri current, Uri uri, long target)
+            throws IOException, InterruptedException {
+
+        // give the current post the bandwidth it needs first.
+        awaitCurrent(current);
+
+        try (MediaCache.Entry entry = mediaCache.prefetch(uri)) {
+            long available = 0;
+            while (available < target) {
+                long requested = Math.min(target, available + CHUNK_SIZE);
+                available = entry.awaitBytes(requested);
+
+                if (available < requested) {
+                    // download has ended, fails if it did not complete.
+                    entry.awaitFile();
+                    return true;
+                }
+
+                if (current != null && mediaCache.isBuffering(current, CURRENT_BUFFER_SIZE))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until the current post has opened its media and its download
+     * is ahead of its player, or has finished.
+     */
+    private void awaitCurrent(@Nullable Uri current) throws InterruptedException {
+        if (current == null)
+            return;
+
+        long deadline = System.currentTimeMillis() + CURRENT_OPEN_TIMEOUT;
+        while (!mediaCache.hasBuffered(current, CURRENT_BUFFER_SIZE)) {
+            // the current post might not read its media through the cache at all.
+            boolean opened = mediaCache.isBuffering(current, CURRENT_BUFFER_SIZE);
+            if (!opened && System.currentTimeMillis() > deadline)
+                return;
+
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+}
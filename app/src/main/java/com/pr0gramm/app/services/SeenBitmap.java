@@ -0,0 +1,262 @@
+package com.pr0gramm.app.services;
+
+import android.annotation.SuppressLint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A growable bitmap of ids, stored in a memory mapped file. The ids are split into blocks
+ * of 64k ids. A block only gets a chunk in the file once one of its ids is set, so the file
+ * grows with the largest id and ranges without any set id use no space.
+ * <p>
+ * Every chunk consists of a small header with the number of the block, followed by the
+ * bits of the block. Each chunk is mapped on its own, so growing the file does not need
+ * to remap the existing chunks.
+ */
+final class SeenBitmap implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger("SeenBitmap");
+
+    private static final int BLOCK_BITS = 16;
+    private static final int BLOCK_WORDS = (1 << BLOCK_BITS) / 64;
+
+    private static final int CHUNK_MAGIC = 0x5ee40001;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int CHUNK_SIZE = CHUNK_HEADER_SIZE + 8 * BLOCK_WORDS;
+
+    // ids are limited to 2^40, this is more than enough.
+    private static final int MAX_BLOCKS = 1 << 24;
+
+    private static final long[] ZERO_WORDS = new long[BLOCK_WORDS];
+
+    private final RandomAccessFile file;
+
+    // readers do not lock, they just take the current array of blocks.
+    private volatile LongBuffer[] blocks = new LongBuffer[0];
+
+    // guarded by this
+    private final Deque<ByteBuffer> unusedChunks = new ArrayDeque<>();
+    private int chunkCount;
+
+    private SeenBitmap(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the bitmap stored in the given file. The file is created if it does not exist.
+     */
+    static SeenBitmap open(File file) throws IOException {
+        SeenBitmap bitmap = new SeenBitmap(new RandomAccessFile(file, "rw"));
+        bitmap.readChunks();
+        return bitmap;
+    }
+
+    private synchronized void readChunks() throws IOException {
+        chunkCount = (int) (file.length() / CHUNK_SIZE);
+
+        // cut off a chunk that was not completely added.
+        if (file.length() != (long) chunkCount * CHUNK_SIZE) {
+            file.setLength((long) chunkCount * CHUNK_SIZE);
+        }
+
+        LongBuffer[] blocks = new LongBuffer[0];
+        for (int idx = 0; idx < chunkCount; idx++) {
+            ByteBuffer chunk = mapChunk(idx);
+
+            int block = chunk.getInt(4);
+            if (chunk.getInt(0) != CHUNK_MAGIC || block < 0 || block >= MAX_BLOCKS) {
+                unusedChunks.add(chunk);
+                continue;
+            }
+
+            if (block >= blocks.length) {
+                blocks = Arrays.copyOf(blocks, block + 1);
+            }
+
+            blocks[block] = wordsOf(chunk);
+        }
+
+        this.blocks = blocks;
+    }
+
+    boolean get(long id) {
+        LongBuffer words = existingBlock(id);
+        return words != null && (words.get(wordIndex(id)) & bitOf(id)) != 0;
+    }
+
+    /**
+     * Returns the state of all the given ids.
+     */
+    boolean[] get(long[] ids) {
+        LongBuffer[] blocks = this.blocks;
+
+        boolean[] result = new boolean[ids.length];
+        for (int idx = 0; idx < ids.length; idx++) {
+            long id = ids[idx];
+            LongBuffer words = existingBlock(blocks, id);
+            result[idx] = words != null && (words.get(wordIndex(id)) & bitOf(id)) != 0;
+        }
+
+        return result;
+    }
+
+    synchronized void set(long id) throws IOException {
+        LongBuffer words = block(id);
+        if (words != null) {
+            int index = wordIndex(id);
+            words.put(index, words.get(index) | bitOf(id));
+        }
+    }
+
+    synchronized void set(long[] ids) throws IOException {
+        for (long id : ids) {
+            set(id);
+        }
+    }
+
+    /**
+     * Merges the given words into the block with the given number.
+     */
+    synchronized void or(int block, long[] values) throws IOException {
+        LongBuffer words = block((long) block << BLOCK_BITS);
+        if (words != null) {
+            for (int idx = 0; idx < BLOCK_WORDS; idx++) {
+                if (values[idx] != 0) {
+                    words.put(idx, words.get(idx) | values[idx]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears all bits. The chunks of the blocks are kept and reused.
+     */
+    synchronized void clear() {
+        for (LongBuffer words : blocks) {
+            if (words != null) {
+                words.clear();
+                words.put(ZERO_WORDS);
+            }
+        }
+    }
+
+    private LongBuffer existingBlock(long id) {
+        return existingBlock(blocks, id);
+    }
+
+    private static LongBuffer existingBlock(LongBuffer[] blocks, long id) {
+        long block = id >>> BLOCK_BITS;
+        return id >= 0 && block < blocks.length ? blocks[(int) block] : null;
+    }
+
+    /**
+     * Returns the words of the block containing the given id. The block
+     * is created, if it does not exist yet. Must hold the lock.
+     */
+    private LongBuffer block(long id) throws IOException {
+        LongBuffer words = existingBlock(id);
+        if (words != null)
+            return words;
+
+        long block = id >>> BLOCK_BITS;
+        if (id < 0 || block >= MAX_BLOCKS) {
+            logger.warn("Id {} is out of range", id);
+            return null;
+        }
+
+        ByteBuffer chunk = unusedChunks.poll();
+        if (chunk == null) {
+            file.setLength((long) (chunkCount + 1) * CHUNK_SIZE);
+            chunk = mapChunk(chunkCount);
+            chunkCount++;
+        }
+
+        words = wordsOf(chunk);
+        words.put(ZERO_WORDS);
+
+        // write the magic last, so the chunk is only used once it is complete.
+        chunk.putInt(4, (int) block);
+        chunk.putInt(0, CHUNK_MAGIC);
+
+        LongBuffer[] blocks = this.blocks;
+        if (block >= blocks.length) {
+            blocks = Arrays.copyOf(blocks, (int) block + 1);
+        } else {
+            blocks = blocks.clone();
+        }
+
+        blocks[(int) block] = words;
+        this.blocks = blocks;
+        return words;
+    }
+
+    /**
+     * Closes the file. The mapped chunks stay valid.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    @SuppressLint("NewApi")
+    private ByteBuffer mapChunk(int index) throws IOException {
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) index * CHUNK_SIZE, CHUNK_SIZE);
+    }
+
+    private static LongBuffer wordsOf(ByteBuffer chunk) {
+        ByteBuffer data = chunk.duplicate();
+        data.position(CHUNK_HEADER_SIZE);
+        return data.slice().asLongBuffer();
+    }
+
+    private static int wordIndex(long id) {
+        return (int) (id & ((1 << BLOCK_BITS) - 1)) >>> 6;
+    }
+
+    private static long bitOf(long id) {
+        return 1L << (id & 63);
+    }
+
+    /**
+     * Sets all ids that are set in a bitmap of the previous format. That format stored the
+     * bit of an id in the byte at <code>id / 8</code> using the mask <code>1 &lt;&lt; (7 - id % 8)</code>.
+     */
+    synchronized void importLegacy(byte[] bytes) throws IOException {
+        int bytesPerBlock = 8 * BLOCK_WORDS;
+
+        long[] values = new long[BLOCK_WORDS];
+        for (int start = 0; start < bytes.length; start += bytesPerBlock) {
+            boolean empty = true;
+
+            for (int word = 0; word < BLOCK_WORDS; word++) {
+                long value = 0;
+                for (int idx = 0; idx < 8; idx++) {
+                    int offset = start + 8 * word + idx;
+                    if (offset < bytes.length) {
+                        // the highest bit was the first id of the byte.
+                        long reversed = Integer.reverse(bytes[offset] & 0xff) >>> 24;
+                        value |= reversed << (8 * idx);
+                    }
+                }
+
+                values[word] = value;
+                empty &= value == 0;
+            }
+
+            if (!empty) {
+                or(start / bytesPerBlock, values);
+            }
+        }
+    }
+}
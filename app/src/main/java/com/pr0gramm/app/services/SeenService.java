@@ -1,107 +1,135 @@
 package com.pr0gramm.app.services;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.AsyncTask;
 
+import com.google.common.io.Files;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.pr0gramm.app.feed.FeedItem;
 import com.pr0gramm.app.util.AndroidUtility;
 
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import rx.Observable;
+
 /**
  * Very simple service to check if an item was already visited or not.
+ * The ids are stored in a {@link SeenBitmap}, which grows with the ids.
  */
 @Singleton
 public class SeenService {
     private static final Logger logger = LoggerFactory.getLogger("SeenService");
 
-    private final Object lock = new Object();
-    private final SettableFuture<ByteBuffer> buffer = SettableFuture.create();
+    private final SettableFuture<SeenBitmap> bitmap = SettableFuture.create();
 
     @Inject
     public SeenService(Context context) {
-        File file = new File(context.getFilesDir(), "seen-posts.bits");
+        File file = new File(context.getFilesDir(), "seen-posts.chunks");
 
         AsyncTask.execute(() -> {
-            // migrate old file if necessary
-            File legacyFile = new File(context.getCacheDir(), "seen-posts.bits");
-            migrate(legacyFile, file);
-
             try {
-                buffer.set(mapByteBuffer(file));
+                SeenBitmap seen = SeenBitmap.open(file);
+
+                // migrate old files if necessary
+                migrate(seen,
+                        new File(context.getFilesDir(), "seen-posts.bits"),
+                        new File(context.getCacheDir(), "seen-posts.bits"));
+
+                bitmap.set(seen);
+
             } catch (IOException error) {
-                logger.warn("Could not load the seen-Cache");
+                logger.warn("Could not load the seen-Cache", error);
             }
         });
     }
 
-    private void migrate(File legacyFile, File newFile) {
-        if (legacyFile.exists() && !newFile.exists()) {
-            logger.info("Moving seen-posts file from {} to {}", legacyFile, newFile);
+    /**
+     * Adds the ids of the previous fixed size bitmaps to the new bitmap. The old files are
+     * only deleted after all of them were imported, so a failed migration is repeated on
+     * the next start. Importing a file twice does not hurt, the ids are just set again.
+     */
+    private void migrate(SeenBitmap target, File... legacyFiles) {
+        for (File legacyFile : legacyFiles) {
+            if (!legacyFile.exists())
+                continue;
+
+            logger.info("Migrating seen-posts file {}", legacyFile);
 
             try {
-                FileUtils.moveFile(legacyFile, newFile);
+                target.importLegacy(Files.toByteArray(legacyFile));
+
             } catch (IOException error) {
                 AndroidUtility.logToCrashlytics(new RuntimeException("Could not migrate 'seen' file.", error));
+                return;
+            }
+        }
+
+        for (File legacyFile : legacyFiles) {
+            if (legacyFile.exists() && !legacyFile.delete()) {
+                logger.warn("Could not delete old seen-posts file {}", legacyFile);
             }
         }
     }
 
+    /**
+     * Emits once the seen posts are loaded.
+     */
+    public Observable<Void> loaded() {
+        return Observable.create(subscriber -> bitmap.addListener(() -> {
+            subscriber.onNext(null);
+            subscriber.onCompleted();
+        }, MoreExecutors.directExecutor()));
+    }
+
     public boolean isSeen(FeedItem item) {
         return isSeen(item.id());
     }
 
     public boolean isSeen(long id) {
-        if (!this.buffer.isDone())
+        if (!this.bitmap.isDone())
             return false;
 
-        int idx = (int) id / 8;
+        return Futures.getUnchecked(this.bitmap).get(id);
+    }
 
-        ByteBuffer buffer = Futures.getUnchecked(this.buffer);
-        if (idx < 0 || idx >= buffer.limit()) {
-            logger.warn("Id is too large");
-            return false;
-        }
+    /**
+     * Checks all the given ids at once, e.g. for all items of an adapter.
+     */
+    public boolean[] isSeen(long[] ids) {
+        if (!this.bitmap.isDone())
+            return new boolean[ids.length];
 
-        int mask = 1 << (7 - id % 8);
-        return (buffer.get(idx) & mask) != 0;
+        return Futures.getUnchecked(this.bitmap).get(ids);
     }
 
     public void markAsSeen(FeedItem item) {
-        markAsSeen((int) item.id());
+        markAsSeen(item.id());
     }
 
-    public void markAsSeen(int id) {
-        if (!this.buffer.isDone())
-            return;
-
-        int idx = id / 8;
+    public void markAsSeen(long id) {
+        markAsSeen(new long[]{id});
+    }
 
-        ByteBuffer buffer = Futures.getUnchecked(this.buffer);
-        if (idx < 0 || idx >= buffer.limit()) {
-            logger.warn("Id is too large");
+    /**
+     * Marks all the given ids as seen at once.
+     */
+    public void markAsSeen(long[] ids) {
+        if (!this.bitmap.isDone())
             return;
-        }
 
-        // only one thread can write the buffer at a time.
-        synchronized (lock) {
-            byte value = buffer.get(idx);
-            value |= 1 << (7 - id % 8);
-            buffer.put(idx, value);
+        try {
+            Futures.getUnchecked(this.bitmap).set(ids);
+        } catch (IOException error) {
+            logger.warn("Could not mark items as seen", error);
         }
     }
 
@@ -109,34 +137,10 @@ public class SeenService {
      * Removes the "marked as seen" status from all items.
      */
     public void clear() {
-        if (!this.buffer.isDone())
+        if (!this.bitmap.isDone())
             return;
 
-        ByteBuffer buffer = Futures.getUnchecked(this.buffer);
-
-        synchronized (lock) {
-            logger.info("Removing all the items");
-            for (int idx = 0; idx < buffer.limit(); idx++) {
-                buffer.put(idx, (byte) 0);
-            }
-        }
-    }
-
-    /**
-     * Maps the cache into a byte buffer. The buffer is backed by the file, so
-     * all changes to the buffer are written back to the file.
-     *
-     * @param file The file to map into memory
-     */
-    @SuppressLint("NewApi")
-    private static ByteBuffer mapByteBuffer(File file) throws IOException {
-        // space for up to four million posts
-        final long size = 4_000_000 / 8;
-
-        logger.info("Mapping cache: " + file);
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.setLength(size);
-            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
-        }
+        logger.info("Removing all the items");
+        Futures.getUnchecked(this.bitmap).clear();
     }
 }
@@ -1,5 +1,6 @@
 package com.pr0gramm.app.services;
 
+import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -23,10 +24,12 @@ import com.google.common.io.ByteStreams;
 import com.pr0gramm.app.BuildConfig;
 import com.pr0gramm.app.Dagger;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.MediaCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -34,10 +37,6 @@ import java.io.InputStream;
 
 import javax.inject.Inject;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-
 import static com.google.common.base.Preconditions.checkArgument;
 
 /**
@@ -46,7 +45,7 @@ public class ShareProvider extends ContentProvider {
     private static final Logger logger = LoggerFactory.getLogger("ShareProvider");
 
     @Inject
-    OkHttpClient httpClient;
+    MediaCache mediaCache;
 
     @Override
     public boolean onCreate() {
@@ -94,16 +93,16 @@ public class ShareProvider extends ContentProvider {
         return cursor;
     }
 
+    @SuppressLint("NewApi")
     private long getSizeForUri(Uri uri) throws IOException {
-        String url = decode(uri).toString();
-
-        Request request = new Request.Builder().url(url).head().build();
-        Response response = httpClient.newCall(request).execute();
-        try {
-            return response.body().contentLength();
+        Uri mediaUri = decode(uri);
+        if (!isHttpUri(mediaUri)) {
+            return new File(mediaUri.getPath()).length();
+        }
 
-        } finally {
-            response.body().close();
+        // does not need the network at all, if the file is already cached.
+        try (MediaCache.Entry entry = mediaCache.get(mediaUri)) {
+            return entry.totalSize();
         }
     }
 
@@ -135,18 +134,20 @@ public class ShareProvider extends ContentProvider {
     @TargetApi(Build.VERSION_CODES.KITKAT)
     @Override
     public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
-        String url = decode(uri).toString();
+        Uri mediaUri = decode(uri);
 
         return openPipeHelper(uri, null, null, null, (output, uri1, mimeType, opts, args) -> {
             try {
-                if (url.matches("https?://.*")) {
-                    Response response = httpClient.newCall(new Request.Builder().url(url).build()).execute();
-                    try (InputStream source = response.body().byteStream()) {
+                if (isHttpUri(mediaUri)) {
+                    // reuses the bytes of the media cache, if the post was already viewed.
+                    try (MediaCache.Entry entry = mediaCache.get(mediaUri);
+                         InputStream source = entry.get()) {
+
                         // stream the data to the caller
                         ByteStreams.copy(source, new FileOutputStream(output.getFileDescriptor()));
                     }
                 } else {
-                    try (InputStream source = getContext().getContentResolver().openInputStream(Uri.parse(url))) {
+                    try (InputStream source = getContext().getContentResolver().openInputStream(mediaUri)) {
                         ByteStreams.copy(source, new FileOutputStream(output.getFileDescriptor()));
                     }
                 }
@@ -167,6 +168,10 @@ public class ShareProvider extends ContentProvider {
         });
     }
 
+    private static boolean isHttpUri(Uri uri) {
+        return uri.toString().matches("https?://.*");
+    }
+
     /**
      * Decodes the received url
      */
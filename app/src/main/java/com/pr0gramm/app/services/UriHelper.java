@@ -10,6 +10,7 @@ import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.feed.FeedItem;
 import com.pr0gramm.app.feed.FeedType;
 import com.pr0gramm.app.services.preloading.PreloadManager;
+import com.pr0gramm.app.services.preloading.ThumbnailPack;
 
 
 /**
@@ -45,7 +46,7 @@ public final class UriHelper {
 
     public Uri thumbnail(HasThumbnail item) {
         return preloadManager.get(item.id())
-                .transform(pi -> Uri.fromFile(pi.thumbnail()))
+                .transform(pi -> ThumbnailPack.uriOf(pi.itemId()))
                 .or(() -> noPreload.thumbnail(item));
     }
 
@@ -1,47 +1,54 @@
 package com.pr0gramm.app.services;
 
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.BaseEncoding;
-import com.google.common.io.LittleEndianDataInputStream;
+import com.google.common.util.concurrent.SettableFuture;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.feed.FeedItem;
 import com.pr0gramm.app.feed.Nothing;
 import com.pr0gramm.app.feed.Vote;
 import com.pr0gramm.app.orm.CachedVote;
+import com.pr0gramm.app.util.AndroidUtility;
 import com.pr0gramm.app.util.BackgroundScheduler;
 import com.pr0gramm.app.util.Holder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import gnu.trove.TCollections;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongByteMap;
 import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongByteHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import rx.Observable;
-import rx.util.async.Async;
+import rx.functions.Func0;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Stopwatch.createStarted;
 import static com.google.common.collect.Lists.transform;
 import static com.pr0gramm.app.orm.CachedVote.Type.ITEM;
-import static com.pr0gramm.app.util.AndroidUtility.checkNotMainThread;
 import static com.pr0gramm.app.util.Databases.withTransaction;
 
 /**
+ * Keeps the votes of the user in memory. The votes are loaded from the database once
+ * and can be queried without touching the database afterwards. Changes are applied to
+ * the memory first and then written to the database in the background.
  */
 @Singleton
 public class VoteService {
@@ -54,11 +61,24 @@ public class VoteService {
 
     private final Holder<SQLiteDatabase> database;
 
+    // the vote value of each known vote by its vote id, guarded by itself.
+    private final TLongByteMap votes = new TLongByteHashMap();
+
+    // all of the following fields are guarded by votes.
+    private final TLongByteMap pendingVotes = new TLongByteHashMap();
+    private boolean pendingClear;
+    private int generation;
+
+    private final SettableFuture<Boolean> loaded = SettableFuture.create();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
     @Inject
     public VoteService(Api api, SeenService seenService, Holder<SQLiteDatabase> database) {
         this.api = api;
         this.seenService = seenService;
         this.database = database;
+
+        AsyncTask.execute(this::loadVotes);
     }
 
     /**
@@ -72,7 +92,7 @@ public class VoteService {
         logger.info("Voting feed item {} {}", item.id(), vote);
         Track.votePost(vote);
 
-        AsyncTask.execute(() -> storeVoteValueInTx(CachedVote.Type.ITEM, item.id(), vote));
+        storeVote(CachedVote.Type.ITEM, item.id(), vote);
         return api.vote(null, item.id(), vote.getVoteValue());
     }
 
@@ -80,7 +100,7 @@ public class VoteService {
         logger.info("Voting comment {} {}", comment.getId(), vote);
         Track.voteComment(vote);
 
-        AsyncTask.execute(() -> storeVoteValueInTx(CachedVote.Type.COMMENT, comment.getId(), vote));
+        storeVote(CachedVote.Type.COMMENT, comment.getId(), vote);
         return api.voteComment(null, comment.getId(), vote.getVoteValue());
     }
 
@@ -88,7 +108,7 @@ public class VoteService {
         logger.info("Voting tag {} {}", tag.getId(), vote);
         Track.voteTag(vote);
 
-        AsyncTask.execute(() -> storeVoteValueInTx(CachedVote.Type.TAG, tag.getId(), vote));
+        storeVote(CachedVote.Type.TAG, tag.getId(), vote);
         return api.voteTag(null, tag.getId(), vote.getVoteValue());
     }
 
@@ -98,37 +118,138 @@ public class VoteService {
      * @param item The item to get the vote for.
      */
     public Observable<Vote> getVote(FeedItem item) {
-        return Async
-                .fromCallable(
-                        () -> CachedVote.find(database.value(), ITEM, item.id()),
-                        BackgroundScheduler.instance())
-                .map(vote -> vote.transform(v -> v.vote).or(Vote.NEUTRAL));
+        return whenLoaded(() -> {
+            synchronized (votes) {
+                return lookup(ITEM, item.id());
+            }
+        });
     }
 
     /**
-     * Stores the vote value. This creates a transaction to prevent lost updates.
-     *
-     * @param type   The type of vote to store in the vote cache.
-     * @param itemId The id of the item to vote
-     * @param vote   The vote to store for that item
+     * Reads all votes from the database. Votes that were stored in the meantime are newer
+     * than the ones in the database and are kept.
      */
-    private void storeVoteValueInTx(CachedVote.Type type, long itemId, Vote vote) {
-        checkNotMainThread();
-        withTransaction(database.value(), () -> storeVoteValue(type, itemId, vote));
+    private void loadVotes() {
+        try {
+            int generation;
+            synchronized (votes) {
+                generation = this.generation;
+            }
+
+            Stopwatch watch = createStarted();
+            TLongByteMap stored = new TLongByteHashMap();
+            CachedVote.readAll(database.value(), stored);
+
+            synchronized (votes) {
+                // the votes were cleared while reading
+                if (generation == this.generation) {
+                    stored.forEachEntry((voteId, value) -> {
+                        if (!votes.containsKey(voteId))
+                            votes.put(voteId, value);
+
+                        return true;
+                    });
+                }
+            }
+
+            logger.info("Loading {} votes took {}", stored.size(), watch);
+
+        } catch (RuntimeException error) {
+            AndroidUtility.logToCrashlytics(error);
+
+        } finally {
+            loaded.set(true);
+        }
     }
 
     /**
-     * Stores a vote value for an item with the given id.
-     * This method must be called inside of an transaction to guarantee
-     * consistency.
-     *
-     * @param type   The type of vote to store in the vote cache.
-     * @param itemId The id of the item to vote
-     * @param vote   The vote to store for that item
+     * Returns an observable with the result of the given function. If the votes are already
+     * loaded, the function is called directly, otherwise after the votes were loaded.
      */
-    private void storeVoteValue(CachedVote.Type type, long itemId, Vote vote) {
-        checkNotMainThread();
-        CachedVote.quickSave(database.value(), type, itemId, vote);
+    private <T> Observable<T> whenLoaded(Func0<T> function) {
+        if (loaded.isDone())
+            return Observable.just(function.call());
+
+        return Observable.from(loaded, BackgroundScheduler.instance()).map(ignored -> function.call());
+    }
+
+    /**
+     * Looks up the vote of the given item. Must hold the lock on votes.
+     */
+    private Vote lookup(CachedVote.Type type, long itemId) {
+        long voteId = CachedVote.voteId(type, itemId);
+        return votes.containsKey(voteId) ? CachedVote.voteOf(votes.get(voteId)) : Vote.NEUTRAL;
+    }
+
+    private void storeVote(CachedVote.Type type, long itemId, Vote vote) {
+        synchronized (votes) {
+            putVote(type, itemId, vote);
+        }
+
+        flushLater();
+    }
+
+    /**
+     * Stores the vote in memory and queues it to be written to the database.
+     * Must hold the lock on votes.
+     */
+    private void putVote(CachedVote.Type type, long itemId, Vote vote) {
+        long voteId = CachedVote.voteId(type, itemId);
+        byte value = (byte) vote.getVoteValue();
+
+        votes.put(voteId, value);
+        pendingVotes.put(voteId, value);
+    }
+
+    private void flushLater() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            AsyncTask.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes all queued changes to the database in one transaction.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+
+        TLongByteMap pending;
+        boolean clear;
+        synchronized (votes) {
+            if (pendingVotes.isEmpty() && !pendingClear)
+                return;
+
+            pending = new TLongByteHashMap(pendingVotes);
+            pendingVotes.clear();
+
+            clear = pendingClear;
+            pendingClear = false;
+        }
+
+        Stopwatch watch = createStarted();
+        SQLiteDatabase db = database.value();
+        try {
+            withTransaction(db, () -> {
+                if (clear) {
+                    CachedVote.clear(db);
+                }
+
+                SQLiteStatement statement = CachedVote.compileSave(db);
+                try {
+                    pending.forEachEntry((voteId, value) -> {
+                        CachedVote.save(statement, voteId, value);
+                        return true;
+                    });
+                } finally {
+                    statement.close();
+                }
+            });
+
+            logger.info("Writing {} votes took {}", pending.size(), watch);
+
+        } catch (RuntimeException error) {
+            AndroidUtility.logToCrashlytics(error);
+        }
     }
 
     /**
@@ -144,40 +265,33 @@ public class VoteService {
         checkArgument(decoded.length % 5 == 0, "Length of vote log must be a multiple of 5");
 
         int actionCount = decoded.length / 5;
-        LittleEndianDataInputStream actionStream = new LittleEndianDataInputStream(
-                new ByteArrayInputStream(decoded));
+        ByteBuffer actionBuffer = ByteBuffer.wrap(decoded).order(ByteOrder.LITTLE_ENDIAN);
 
-        AtomicReference<Exception> errorRef = new AtomicReference<>();
+        TLongArrayList seenIds = new TLongArrayList();
 
         Stopwatch watch = Stopwatch.createStarted();
-        withTransaction(database.value(), () -> {
-            logger.info("Applying {} vote actions", actionCount);
-            try {
-                for (int idx = 0; idx < actionCount; idx++) {
-                    long id = actionStream.readInt();
-                    VoteAction action = VOTE_ACTIONS.get(actionStream.readUnsignedByte());
-                    if (action == null)
-                        continue;
-
-                    storeVoteValue(action.type, id, action.vote);
-                    if (action.type == ITEM) {
-                        seenService.markAsSeen((int) id);
-                    }
+        logger.info("Applying {} vote actions", actionCount);
+
+        synchronized (votes) {
+            for (int idx = 0; idx < actionCount; idx++) {
+                long id = actionBuffer.getInt();
+                VoteAction action = VOTE_ACTIONS.get(actionBuffer.get() & 0xff);
+                if (action == null)
+                    continue;
+
+                putVote(action.type, id, action.vote);
+                if (action.type == ITEM) {
+                    seenIds.add(id);
                 }
-            } catch (Exception error) {
-                // doInTransaction consumes exceptions -.-
-                errorRef.set(error);
-                throw Throwables.propagate(error);
             }
-        });
+        }
+
+        flushLater();
 
         logger.info("Applying vote actions took {}", watch);
 
-        // re-throw error
-        Exception error = errorRef.get();
-        if (error != null) {
-            throw Throwables.propagate(error);
-        }
+        // mark all voted items as seen at once
+        seenService.markAsSeen(seenIds.toArray());
     }
 
     /**
@@ -187,11 +301,13 @@ public class VoteService {
     public Observable<List<Api.Tag>> tag(FeedItem feedItem, List<String> tags) {
         String tagString = Joiner.on(",").join(transform(tags, tag -> tag.replace(',', ' ')));
         return api.addTags(null, feedItem.id(), tagString).map(response -> {
-            withTransaction(database.value(), () -> {
+            synchronized (votes) {
                 // auto-apply up-vote to newly created tags
                 for (long tagId : response.getTagIds())
-                    storeVoteValue(CachedVote.Type.TAG, tagId, Vote.UP);
-            });
+                    putVote(CachedVote.Type.TAG, tagId, Vote.UP);
+            }
+
+            flushLater();
 
             return response.getTags();
         });
@@ -205,7 +321,7 @@ public class VoteService {
                 .filter(response -> response.getComments().size() >= 1)
                 .map(response -> {
                     // store the implicit upvote for the comment.
-                    storeVoteValueInTx(CachedVote.Type.COMMENT, response.getCommentId(), Vote.UP);
+                    storeVote(CachedVote.Type.COMMENT, response.getCommentId(), Vote.UP);
                     return response;
                 });
     }
@@ -219,7 +335,15 @@ public class VoteService {
      */
     public void clear() {
         logger.info("Removing all items from vote cache");
-        CachedVote.clear(database.value());
+
+        synchronized (votes) {
+            votes.clear();
+            pendingVotes.clear();
+            pendingClear = true;
+            generation++;
+        }
+
+        flushLater();
     }
 
     /**
@@ -242,17 +366,19 @@ public class VoteService {
         if (ids.isEmpty())
             return Observable.just(NO_VOTES);
 
-        return Async.start(() -> {
-            Stopwatch watch = createStarted();
-            List<CachedVote> cachedVotes = CachedVote.find(database.value(), type, ids);
-
-            TLongObjectHashMap<Vote> result = new TLongObjectHashMap<>();
-            for (CachedVote cachedVote : cachedVotes)
-                result.put(cachedVote.itemId, cachedVote.vote);
+        return whenLoaded(() -> {
+            TLongObjectMap<Vote> result = new TLongObjectHashMap<>();
+            synchronized (votes) {
+                for (long id : ids) {
+                    long voteId = CachedVote.voteId(type, id);
+                    if (votes.containsKey(voteId)) {
+                        result.put(id, CachedVote.voteOf(votes.get(voteId)));
+                    }
+                }
+            }
 
-            logger.info("Loading votes for {} {}s took {}", ids.size(), type.name().toLowerCase(), watch);
             return result;
-        }, BackgroundScheduler.instance());
+        });
     }
 
     private static class VoteAction {
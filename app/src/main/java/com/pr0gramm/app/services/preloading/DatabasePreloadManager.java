@@ -1,81 +1,514 @@
 package com.pr0gramm.app.services.preloading;
 
 import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.os.Build;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.util.AndroidUtility;
-import com.pr0gramm.app.util.BackgroundScheduler;
+import com.pr0gramm.app.util.Databases;
 import com.squareup.sqlbrite.BriteDatabase;
 
 import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import rx.Observable;
 
 /**
+ * Keeps the preloaded items in the database. All items are also kept in an in-memory index
+ * that is updated in place, so lookups while binding views are cheap. The index is written to
+ * a compact snapshot file, so it is available right after the start of the app, before the
+ * database was queried. The files of an item are only checked the first time it is accessed.
+ * <p>
+ * The preloaded files are limited to the budget configured in the settings. If they use
+ * more space, the least recently accessed items are removed in the background.
+ * <p>
+ * The thumbnails of the items are stored in a {@link ThumbnailPack}.
  */
 @Singleton
 public class DatabasePreloadManager implements PreloadManager {
     private static final Logger logger = LoggerFactory.getLogger("DatabasePreloadManager");
 
-    private static final String TABLE_NAME = "preload_2";
+    private static final String TABLE_NAME = "preload_4";
     private static final String QUERY_ALL_ITEM_IDS = "SELECT * FROM " + TABLE_NAME;
 
+    // thumbnail files of migrated items that still need to be moved into the pack.
+    private static final String MIGRATED_THUMBNAILS_TABLE = "preload_thumbnail_files";
+
+    private static final int SNAPSHOT_VERSION = 3;
+
+    // do not write a new access time to disk for every single access.
+    private static final long ACCESS_TIME_RESOLUTION = TimeUnit.MINUTES.toMillis(1);
+
+    // number of items evicted in one go, before the next batch is scheduled.
+    private static final int EVICTION_BATCH_SIZE = 16;
+
+    // unknown files are only removed if they are not written right now.
+    private static final long ORPHAN_MIN_AGE = TimeUnit.HOURS.toMillis(1);
+
     private final Observable<BriteDatabase> database;
-    private final AtomicReference<ImmutableMap<Long, PreloadItem>> preloadCache =
-            new AtomicReference<>(ImmutableMap.<Long, PreloadItem>of());
+    private final Settings settings;
+    private final ThumbnailPack thumbnailPack;
+    private final File directory;
+    private final File snapshotFile;
+
+    // all of the following collections are guarded by the index.
+    private final TLongObjectMap<PreloadItem> index = new TLongObjectHashMap<>();
+    private final TLongLongMap sizes = new TLongLongHashMap();
+    private final TLongLongMap accessTimes = new TLongLongHashMap();
+    private final TLongSet validated = new TLongHashSet();
+    private final TLongSet accessed = new TLongHashSet();
+
+    // ids of the items stored while the index is loaded from the database, or null.
+    private TLongSet storedWhileLoading;
+
+    private final AtomicBoolean maintenancePending = new AtomicBoolean();
+
+    // loading the index might migrate files, do not block the shared AsyncTask executor.
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("DatabasePreloadManager-%d")
+            .build());
 
     @Inject
-    public DatabasePreloadManager(Observable<BriteDatabase> database) {
+    public DatabasePreloadManager(Context context, Settings settings,
+                                  ThumbnailPack thumbnailPack, Observable<BriteDatabase> database) {
+
         this.database = database;
+        this.settings = settings;
+        this.thumbnailPack = thumbnailPack;
+        this.directory = directory(context);
+        this.snapshotFile = new File(context.getFilesDir(), "preload-index");
+
+        // the snapshot is small, read it right away.
+        readSnapshot();
+
+        // the database is the source of truth, update the index in background.
+        executor.execute(this::loadIndex);
+    }
+
+    /**
+     * The directory containing the preloaded files.
+     */
+    static File directory(Context context) {
+        return new File(context.getCacheDir(), "preload");
+    }
+
+    @SuppressLint("NewApi")
+    private void loadIndex() {
+        try {
+            // reading the records of the pack scans the whole file.
+            thumbnailPack.open();
+
+            TLongObjectMap<PreloadItem> loadedItems = new TLongObjectHashMap<>();
+            TLongLongMap loadedSizes = new TLongLongHashMap();
+            TLongLongMap loadedAccessTimes = new TLongLongHashMap();
+
+            synchronized (index) {
+                storedWhileLoading = new TLongHashSet();
+            }
+
+            // query without holding the lock, lookups use the snapshot in the meantime.
+            try (Cursor cursor = db().query(QUERY_ALL_ITEM_IDS)) {
+                int cSize = cursor.getColumnIndexOrThrow("size");
+                int cLastAccess = cursor.getColumnIndexOrThrow("lastAccess");
+
+                while (cursor.moveToNext()) {
+                    PreloadItem item = readPreloadItem(cursor);
+                    loadedItems.put(item.itemId(), item);
+                    loadedSizes.put(item.itemId(), cursor.getLong(cSize));
+                    loadedAccessTimes.put(item.itemId(), cursor.getLong(cLastAccess));
+                }
+            }
+
+            // the size of a migrated item includes its thumbnail, move those into the pack first.
+            packMigratedThumbnails();
+
+            // items migrated from the first table do not know their size yet.
+            updateUnknownSizes(loadedItems, loadedSizes);
+
+            TLongSet knownItemIds;
+            synchronized (index) {
+                // items stored while the query was running might be missing in its result.
+                for (long itemId : storedWhileLoading.toArray()) {
+                    PreloadItem item = index.get(itemId);
+                    if (item != null) {
+                        loadedItems.put(itemId, item);
+                        loadedSizes.put(itemId, sizes.get(itemId));
+                        loadedAccessTimes.put(itemId, accessTimes.get(itemId));
+                    }
+                }
+
+                storedWhileLoading = null;
+
+                index.clear();
+                index.putAll(loadedItems);
+                sizes.clear();
+                sizes.putAll(loadedSizes);
+                accessTimes.clear();
+                accessTimes.putAll(loadedAccessTimes);
+
+                validated.retainAll(index.keys());
+                accessed.retainAll(index.keys());
+
+                knownItemIds = new TLongHashSet(index.keys());
+            }
+
+            // removals are not written to the pack, drop thumbnails of unknown items.
+            thumbnailPack.retainAll(knownItemIds);
+
+            removeOrphanedFiles();
+            maintenanceLater();
+
+        } catch (RuntimeException err) {
+            AndroidUtility.logToCrashlytics(err);
+        }
+    }
+
+    /**
+     * Appends the thumbnail files of items migrated from a previous table
+     * to the pack. Afterwards the files are deleted.
+     */
+    @SuppressLint("NewApi")
+    private void packMigratedThumbnails() {
+        BriteDatabase db = db();
+
+        int count = 0;
+        try (Cursor cursor = db.query("SELECT itemId, thumbnail FROM " + MIGRATED_THUMBNAILS_TABLE)) {
+            while (cursor.moveToNext()) {
+                long itemId = cursor.getLong(0);
+                File file = new File(cursor.getString(1));
+                if (!file.exists())
+                    continue;
+
+                try {
+                    if (!thumbnailPack.contains(itemId)) {
+                        thumbnailPack.append(itemId, file);
+                        count++;
+                    }
+
+                    if (!file.delete()) {
+                        logger.warn("Could not delete thumbnail file {}", file);
+                    }
+
+                } catch (IOException err) {
+                    // the item is removed on access, the file is removed as an orphan.
+                    logger.warn("Could not move thumbnail file " + file + " into the pack", err);
+                }
+            }
+        }
+
+        if (count > 0) {
+            logger.info("Moved {} thumbnails of migrated items into the pack", count);
+        }
 
-        // initialize in background.
-        queryAllItems()
-                .subscribeOn(BackgroundScheduler.instance())
-                .subscribe(this::setPreloadCache);
+        db.delete(MIGRATED_THUMBNAILS_TABLE, null);
     }
 
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    private void setPreloadCache(ImmutableMap<Long, PreloadItem> items) {
-        List<PreloadItem> missing = new ArrayList<>();
-        ImmutableMap.Builder<Long, PreloadItem> available = ImmutableMap.builder();
+    @SuppressLint("NewApi")
+    private void updateUnknownSizes(TLongObjectMap<PreloadItem> items, TLongLongMap itemSizes) {
+        TLongLongMap updates = new TLongLongHashMap();
+        for (PreloadItem item : items.valueCollection()) {
+            if (itemSizes.get(item.itemId()) == 0) {
+                updates.put(item.itemId(), item.media().length() + thumbnailPack.sizeOf(item.itemId()));
+            }
+        }
+
+        if (updates.isEmpty())
+            return;
+
+        logger.info("Updating the size of {} preloaded items", updates.size());
+
+        BriteDatabase db = db();
+        try (BriteDatabase.Transaction tx = db.newTransaction()) {
+            for (long itemId : updates.keys()) {
+                ContentValues values = new ContentValues();
+                values.put("size", updates.get(itemId));
+                db.update(TABLE_NAME, values, "itemId=?", String.valueOf(itemId));
+            }
+
+            tx.markSuccessful();
+        }
+
+        itemSizes.putAll(updates);
+    }
+
+    /**
+     * Must be called while holding the lock of the index.
+     */
+    private void putIndex(PreloadItem item, long size, long lastAccess) {
+        index.put(item.itemId(), item);
+        sizes.put(item.itemId(), size);
+        accessTimes.put(item.itemId(), lastAccess);
+    }
+
+    /**
+     * Removes files from the preload directory that do not belong to any item, e.g.
+     * because the app crashed after an item was removed, but before its files were deleted.
+     */
+    private void removeOrphanedFiles() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        Set<File> known = new HashSet<>();
+        known.add(thumbnailPack.file());
 
-        for (PreloadItem item : items.values()) {
-            if (!item.thumbnail().exists() || !item.media().exists()) {
-                missing.add(item);
-            } else {
-                available.put(item.itemId(), item);
+        synchronized (index) {
+            for (PreloadItem item : index.valueCollection()) {
+                known.add(item.media());
             }
         }
 
-        if (missing.size() > 0) {
-            // delete missing entries in background.
-            this.database.subscribeOn(BackgroundScheduler.instance()).subscribe(db -> {
-                try (BriteDatabase.Transaction tx = db.newTransaction()) {
-                    deleteTx(db, missing);
-                    tx.markSuccessful();
+        long threshold = System.currentTimeMillis() - ORPHAN_MIN_AGE;
+        for (File file : files) {
+            // partial downloads are handled by the preload service
+            String name = file.getName();
+            if (name.endsWith(".tmp") || name.endsWith(".segments"))
+                continue;
+
+            if (!known.contains(file) && file.lastModified() < threshold) {
+                logger.info("Removing orphaned preload file {}", file);
+                if (!file.delete()) {
+                    logger.warn("Could not delete orphaned preload file {}", file);
                 }
-            });
+            }
+        }
+    }
+
+    /**
+     * Checks the files of the item, if that was not done yet. If a file is
+     * missing, the item is removed from the index and from the database.
+     */
+    private boolean validate(PreloadItem item) {
+        // the pack is opened by loadIndex, do not scan it on the calling thread.
+        // Until then, the item is treated as valid but stays unvalidated.
+        if (!thumbnailPack.isOpen())
+            return true;
+
+        synchronized (index) {
+            if (!validated.add(item.itemId()))
+                return true;
+        }
+
+        if (thumbnailPack.contains(item.itemId()) && item.media().exists())
+            return true;
+
+        logger.info("Files of preloaded item {} are missing", item.itemId());
+        removeFromIndex(Collections.singleton(item));
+
+        // delete missing entry in background.
+        executor.execute(() -> deleteInTx(db(), Collections.singleton(item)));
+        return false;
+    }
+
+    private void removeFromIndex(Iterable<PreloadItem> items) {
+        synchronized (index) {
+            for (PreloadItem item : items) {
+                index.remove(item.itemId());
+                sizes.remove(item.itemId());
+                accessTimes.remove(item.itemId());
+                validated.remove(item.itemId());
+                accessed.remove(item.itemId());
+            }
+        }
+
+        maintenanceLater();
+    }
+
+    private void maintenanceLater() {
+        if (maintenancePending.compareAndSet(false, true)) {
+            executor.execute(this::maintenance);
+        }
+    }
+
+    /**
+     * Writes the access times to the database, removes items that exceed
+     * the budget and writes the snapshot of the index.
+     */
+    private void maintenance() {
+        maintenancePending.set(false);
+
+        try {
+            writeAccessTimes();
+            evictOneBatch();
+            writeSnapshot();
+
+            thumbnailPack.compactIfNeeded();
+
+        } catch (RuntimeException err) {
+            AndroidUtility.logToCrashlytics(err);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private void writeAccessTimes() {
+        TLongLongMap updates = new TLongLongHashMap();
+        synchronized (index) {
+            if (accessed.isEmpty())
+                return;
+
+            for (long itemId : accessed.toArray()) {
+                updates.put(itemId, accessTimes.get(itemId));
+            }
+
+            accessed.clear();
+        }
+
+        BriteDatabase db = db();
+        try (BriteDatabase.Transaction tx = db.newTransaction()) {
+            for (long itemId : updates.keys()) {
+                ContentValues values = new ContentValues();
+                values.put("lastAccess", updates.get(itemId));
+                db.update(TABLE_NAME, values, "itemId=?", String.valueOf(itemId));
+            }
+
+            tx.markSuccessful();
+        }
+    }
+
+    /**
+     * Removes the least recently accessed items, if the preloaded files exceed the budget.
+     * Only a few items are removed at once, the next batch is scheduled afterwards.
+     */
+    private void evictOneBatch() {
+        long budget = settings.preloadBudget();
+
+        List<PreloadItem> evict = new ArrayList<>();
+        synchronized (index) {
+            long total = 0;
+            for (long size : sizes.values()) {
+                total += size;
+            }
+
+            if (total <= budget)
+                return;
+
+            List<PreloadItem> items = new ArrayList<>(index.valueCollection());
+            Collections.sort(items, (lhs, rhs) -> Longs.compare(
+                    accessTimes.get(lhs.itemId()), accessTimes.get(rhs.itemId())));
+
+            for (PreloadItem item : items) {
+                if (total <= budget || evict.size() >= EVICTION_BATCH_SIZE)
+                    break;
+
+                total -= sizes.get(item.itemId());
+                evict.add(item);
+            }
+        }
+
+        logger.info("Evicting {} preloaded items to stay in budget", evict.size());
+
+        // remove from the index first, so the items are not used anymore.
+        removeFromIndex(evict);
+        deleteInTx(db(), evict);
+    }
+
+    @SuppressLint("NewApi")
+    private void writeSnapshot() {
+        List<PreloadItem> items;
+        long[] itemSizes, itemAccessTimes;
+
+        synchronized (index) {
+            items = new ArrayList<>(index.valueCollection());
+            itemSizes = new long[items.size()];
+            itemAccessTimes = new long[items.size()];
+
+            for (int idx = 0; idx < items.size(); idx++) {
+                itemSizes[idx] = sizes.get(items.get(idx).itemId());
+                itemAccessTimes[idx] = accessTimes.get(items.get(idx).itemId());
+            }
         }
 
-        preloadCache.set(available.build());
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeInt(items.size());
+            for (int idx = 0; idx < items.size(); idx++) {
+                PreloadItem item = items.get(idx);
+                output.writeLong(item.itemId());
+                output.writeLong(item.creation().getMillis());
+                output.writeUTF(item.media().getPath());
+                output.writeLong(itemSizes[idx]);
+                output.writeLong(itemAccessTimes[idx]);
+            }
+
+        } catch (IOException err) {
+            logger.warn("Could not write preload index", err);
+            return;
+        }
+
+        if (!temp.renameTo(snapshotFile)) {
+            logger.warn("Could not rename preload index");
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private void readSnapshot() {
+        if (!snapshotFile.exists())
+            return;
+
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+
+            if (input.readInt() != SNAPSHOT_VERSION)
+                return;
+
+            int count = input.readInt();
+            synchronized (index) {
+                for (int idx = 0; idx < count; idx++) {
+                    PreloadItem item = ImmutablePreloadItem.builder()
+                            .itemId(input.readLong())
+                            .creation(new Instant(input.readLong()))
+                            .media(new File(input.readUTF()))
+                            .build();
+
+                    putIndex(item, input.readLong(), input.readLong());
+                }
+            }
+
+        } catch (IOException err) {
+            logger.warn("Could not read preload index", err);
+        }
     }
 
     private Observable<ImmutableMap<Long, PreloadItem>> queryAllItems() {
@@ -90,13 +523,11 @@ public class DatabasePreloadManager implements PreloadManager {
         int cItemId = cursor.getColumnIndexOrThrow("itemId");
         int cCreation = cursor.getColumnIndexOrThrow("creation");
         int cMedia = cursor.getColumnIndexOrThrow("media");
-        int cThumbnail = cursor.getColumnIndexOrThrow("thumbnail");
 
         return ImmutablePreloadItem.builder()
                 .itemId(cursor.getLong(cItemId))
                 .creation(new Instant(cursor.getLong(cCreation)))
                 .media(new File(cursor.getString(cMedia)))
-                .thumbnail(new File(cursor.getString(cThumbnail)))
                 .build();
     }
 
@@ -105,32 +536,93 @@ public class DatabasePreloadManager implements PreloadManager {
     }
 
     /**
-     * Inserts the given entry blockingly into the database.
+     * Inserts the given entries blockingly into the database. All entries are written
+     * in one transaction, so the list of preloaded items is only queried once afterwards.
      */
+    @SuppressLint("NewApi")
     @Override
-    public void store(PreloadItem entry) {
-        ContentValues values = new ContentValues();
-        values.put("itemId", entry.itemId());
-        values.put("creation", entry.creation().getMillis());
-        values.put("media", entry.media().getPath());
-        values.put("thumbnail", entry.thumbnail().getPath());
-        db().insert(TABLE_NAME, values, SQLiteDatabase.CONFLICT_REPLACE);
+    public void store(Collection<PreloadItem> entries) {
+        long now = System.currentTimeMillis();
+
+        TLongLongMap entrySizes = new TLongLongHashMap();
+        for (PreloadItem entry : entries) {
+            entrySizes.put(entry.itemId(), entry.media().length() + thumbnailPack.sizeOf(entry.itemId()));
+        }
+
+        BriteDatabase db = db();
+
+        try (BriteDatabase.Transaction tx = db.newTransaction()) {
+            for (PreloadItem entry : entries) {
+                ContentValues values = new ContentValues();
+                values.put("itemId", entry.itemId());
+                values.put("creation", entry.creation().getMillis());
+                values.put("media", entry.media().getPath());
+                values.put("size", entrySizes.get(entry.itemId()));
+                values.put("lastAccess", now);
+                db.insert(TABLE_NAME, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+
+            tx.markSuccessful();
+        }
+
+        // the files were just written, no need to check them again.
+        synchronized (index) {
+            for (PreloadItem entry : entries) {
+                putIndex(entry, entrySizes.get(entry.itemId()), now);
+                validated.add(entry.itemId());
+
+                if (storedWhileLoading != null) {
+                    storedWhileLoading.add(entry.itemId());
+                }
+            }
+        }
+
+        maintenanceLater();
     }
 
     /**
      * Checks if an entry with the given itemId already exists in the database.
+     * This does not count as an access of the item.
      */
     @Override
     public boolean exists(long itemId) {
-        return preloadCache.get().containsKey(itemId);
+        return lookup(itemId).isPresent();
     }
 
     /**
-     * Returns the {@link PreloadItem} with a given id.
+     * Returns the {@link PreloadItem} with a given id and marks it as recently used.
      */
     @Override
     public Optional<PreloadItem> get(long itemId) {
-        return Optional.fromNullable(preloadCache.get().get(itemId));
+        Optional<PreloadItem> item = lookup(itemId);
+        if (item.isPresent()) {
+            touch(itemId);
+        }
+
+        return item;
+    }
+
+    private Optional<PreloadItem> lookup(long itemId) {
+        PreloadItem item;
+        synchronized (index) {
+            item = index.get(itemId);
+        }
+
+        return item != null && validate(item) ? Optional.of(item) : Optional.absent();
+    }
+
+    private void touch(long itemId) {
+        long now = System.currentTimeMillis();
+
+        synchronized (index) {
+            if (now - accessTimes.get(itemId) < ACCESS_TIME_RESOLUTION)
+                return;
+
+            accessTimes.put(itemId, now);
+            accessed.add(itemId);
+        }
+
+        maintenanceLater();
     }
 
     @SuppressLint("NewApi")
@@ -140,8 +632,8 @@ public class DatabasePreloadManager implements PreloadManager {
 
         BriteDatabase db = db();
 
+        List<PreloadItem> items = new ArrayList<>();
         try (BriteDatabase.Transaction tx = db.newTransaction()) {
-            List<PreloadItem> items = new ArrayList<>();
             try (Cursor cursor = db.query("SELECT * FROM " + TABLE_NAME + " WHERE creation<?",
                     String.valueOf(threshold.getMillis()))) {
 
@@ -152,6 +644,16 @@ public class DatabasePreloadManager implements PreloadManager {
             deleteTx(db, items);
             tx.markSuccessful();
         }
+
+        removeFromIndex(items);
+    }
+
+    @SuppressLint("NewApi")
+    private void deleteInTx(BriteDatabase db, Collection<PreloadItem> items) {
+        try (BriteDatabase.Transaction tx = db.newTransaction()) {
+            deleteTx(db, items);
+            tx.markSuccessful();
+        }
     }
 
     private void deleteTx(BriteDatabase db, Iterable<PreloadItem> items) {
@@ -161,8 +663,7 @@ public class DatabasePreloadManager implements PreloadManager {
             if (!item.media().delete())
                 logger.warn("Could not delete media file {}", item.media());
 
-            if (!item.thumbnail().delete())
-                logger.warn("Could not delete thumbnail file {}", item.thumbnail());
+            thumbnailPack.remove(item.itemId());
 
             // delete entry from database
             db.delete(TABLE_NAME, "itemId=?", String.valueOf(item.itemId()));
@@ -187,6 +688,33 @@ public class DatabasePreloadManager implements PreloadManager {
                 "itemId INT NOT NULL UNIQUE," +
                 "creation INT NOT NULL," +
                 "media TEXT NOT NULL," +
+                "size INT NOT NULL DEFAULT 0," +
+                "lastAccess INT NOT NULL DEFAULT 0)");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MIGRATED_THUMBNAILS_TABLE + " (" +
+                "itemId INT PRIMARY KEY," +
                 "thumbnail TEXT NOT NULL)");
+
+        // keep the items of the previous tables. The first table did not have
+        // a size, it is calculated when the index is loaded.
+        migrateTable(db, "preload_2", "0", "creation");
+        migrateTable(db, "preload_3", "size", "lastAccess");
+    }
+
+    private static void migrateTable(SQLiteDatabase db, String table, String size, String lastAccess) {
+        if (!Databases.tableExists(db, table))
+            return;
+
+        logger.info("migrate preloaded items from {} to {}", table, TABLE_NAME);
+
+        // the open helper runs this inside of a transaction.
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME + " (itemId, creation, media, size, lastAccess) " +
+                "SELECT itemId, creation, media, " + size + ", " + lastAccess + " FROM " + table);
+
+        // the thumbnail files are moved into the pack when the index is loaded.
+        db.execSQL("INSERT OR IGNORE INTO " + MIGRATED_THUMBNAILS_TABLE + " (itemId, thumbnail) " +
+                "SELECT itemId, thumbnail FROM " + table);
+
+        db.execSQL("DROP TABLE " + table);
     }
 }
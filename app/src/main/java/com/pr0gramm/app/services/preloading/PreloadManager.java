@@ -7,13 +7,14 @@ import org.immutables.value.Value;
 import org.joda.time.Instant;
 
 import java.io.File;
+import java.util.Collection;
 
 import rx.Observable;
 
 /**
  */
 public interface PreloadManager {
-    void store(PreloadItem entry);
+    void store(Collection<PreloadItem> entries);
 
     boolean exists(long itemId);
 
@@ -32,7 +33,5 @@ public interface PreloadManager {
         Instant creation();
 
         File media();
-
-        File thumbnail();
     }
 }
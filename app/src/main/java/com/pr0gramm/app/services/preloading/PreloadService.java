@@ -11,11 +11,16 @@ import android.os.PowerManager;
 import android.support.v4.app.NotificationCompat;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.pr0gramm.app.Dagger;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.MediaCache;
+import com.pr0gramm.app.io.SegmentedDownloader;
 import com.pr0gramm.app.services.NotificationService;
 import com.pr0gramm.app.services.UriHelper;
 import com.pr0gramm.app.util.AndroidUtility;
@@ -31,12 +36,16 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 import rx.functions.Action1;
 
 import static com.google.common.collect.Lists.newArrayList;
@@ -46,19 +55,33 @@ import static org.joda.time.Minutes.minutes;
 
 /**
  * This service handles preloading and resolving of preloaded images.
+ * <p>
+ * Media files and thumbnails are downloaded in parallel, each by its own bounded pool.
+ * Partial downloads are kept and resumed the next time the item is preloaded.
+ * Thumbnails are moved into the {@link ThumbnailPack} once they are downloaded.
  */
 public class PreloadService extends IntentService {
     private static final Logger logger = LoggerFactory.getLogger("PreloadService");
     private static final String EXTRA_LIST_OF_ITEMS = "PreloadService.listOfItems";
     private static final String EXTRA_CANCEL = "PreloadService.cancel";
 
+    private static final int MEDIA_DOWNLOADS = 3;
+    private static final int THUMBNAIL_DOWNLOADS = 4;
+    private static final int STORE_BATCH_SIZE = 16;
+
     private long jobId;
-    private long lastShown;
     private volatile boolean canceled;
 
+    // set if we need to stop without the user canceling, e.g. because
+    // the wake lock will time out or we are not on wifi anymore.
+    private volatile boolean stopped;
+
     @Inject
     OkHttpClient httpClient;
 
+    @Inject
+    MediaCache mediaCache;
+
     @Inject
     NotificationManager notificationManager;
 
@@ -68,6 +91,9 @@ public class PreloadService extends IntentService {
     @Inject
     PowerManager powerManager;
 
+    @Inject
+    ThumbnailPack thumbnailPack;
+
     private File preloadCache;
 
     public PreloadService() {
@@ -79,7 +105,7 @@ public class PreloadService extends IntentService {
         super.onCreate();
         Dagger.appComponent(this).inject(this);
 
-        preloadCache = new File(getCacheDir(), "preload");
+        preloadCache = DatabasePreloadManager.directory(this);
         if (preloadCache.mkdirs()) {
             logger.info("preload directory created at {}", preloadCache);
         }
@@ -103,6 +129,7 @@ public class PreloadService extends IntentService {
 
         jobId = System.currentTimeMillis();
         canceled = false;
+        stopped = false;
 
         PendingIntent contentIntent = PendingIntent.getService(this, 0,
                 new Intent(this, PreloadService.class).putExtra(EXTRA_CANCEL, jobId),
@@ -116,9 +143,6 @@ public class PreloadService extends IntentService {
                 .addAction(R.drawable.ic_close_24dp, getString(R.string.cancel), contentIntent)
                 .setContentIntent(contentIntent);
 
-        Instant creation = Instant.now();
-        UriHelper uriHelper = UriHelper.of(this);
-
         // create a wake lock
         PowerManager.WakeLock wakeLock = powerManager.newWakeLock(
                 PowerManager.PARTIAL_WAKE_LOCK, PreloadService.class.getName());
@@ -126,55 +150,68 @@ public class PreloadService extends IntentService {
         // send out the initial notification and bring the service into foreground mode!
         startForeground(NotificationService.NOTIFICATION_PRELOAD_ID, noBuilder.build());
 
+        ExecutorService mediaPool = newPool("media", MEDIA_DOWNLOADS);
+        ExecutorService thumbnailPool = newPool("thumbnail", THUMBNAIL_DOWNLOADS);
+
         try {
             logger.info("Acquire wake lock for at most 10 minutes");
             wakeLock.acquire(minutes(10).toStandardDuration().getMillis());
 
-            int failed = 0, downloaded = 0;
-            for (int idx = 0; idx < items.size() && !canceled; idx++) {
-                if (AndroidUtility.isOnMobile(this))
-                    break;
+            // stop a little earlier, so we have time to store the items and clean up.
+            long deadline = System.currentTimeMillis() + minutes(9).toStandardDuration().getMillis();
 
-                FeedItem item = items.get(idx);
-                try {
-                    Uri mediaUri = uriHelper.media(item);
-                    boolean mediaIsLocal = "file".equals(mediaUri.getScheme());
-                    File mediaFile = mediaIsLocal ? toFile(mediaUri) : cacheFileForUri(mediaUri);
+            Job job = new Job(items.size());
+            Instant creation = Instant.now();
+            UriHelper uriHelper = UriHelper.of(this);
+
+            for (FeedItem item : items) {
+                Uri mediaUri = uriHelper.media(item);
+                boolean mediaIsLocal = "file".equals(mediaUri.getScheme());
+                File mediaFile = mediaIsLocal ? toFile(mediaUri) : cacheFileForUri(mediaUri);
 
-                    Uri thumbUri = uriHelper.thumbnail(item);
-                    boolean thumbIsLocal = "file".equals(thumbUri.getScheme());
-                    File thumbFile = thumbIsLocal ? toFile(thumbUri) : cacheFileForUri(thumbUri);
+                // prepare the entry that will be put into the database later
+                PreloadManager.PreloadItem entry = ImmutablePreloadItem.builder()
+                        .itemId(item.id())
+                        .creation(creation)
+                        .media(mediaFile)
+                        .build();
 
-                    // prepare the entry that will be put into the database later
-                    PreloadManager.PreloadItem entry = ImmutablePreloadItem.builder()
-                            .itemId(item.id())
-                            .creation(creation)
-                            .media(mediaFile)
-                            .thumbnail(thumbFile)
-                            .build();
+                PendingItem pending = new PendingItem(job, entry);
 
-                    maybeShow(noBuilder.setProgress(items.size(), idx, false));
+                if (!thumbnailPack.contains(item.id())) {
+                    Uri thumbUri = uriHelper.noPreload().thumbnail(item);
+                    pending.schedule(thumbnailPool, new Transfer(thumbUri, cacheFileForUri(thumbUri), true));
+                }
 
-                    if (!mediaIsLocal)
-                        download(noBuilder, 2 * idx, 2 * items.size(), mediaUri, entry.media());
+                if (!mediaIsLocal)
+                    pending.schedule(mediaPool, new Transfer(mediaUri, mediaFile, false));
 
-                    if (!thumbIsLocal)
-                        download(noBuilder, 2 * idx + 1, 2 * items.size(), thumbUri, entry.thumbnail());
+                pending.scheduled();
+            }
 
-                    preloadManager.store(entry);
+            // wait for all items while updating the notification
+            // and storing the finished items in batches.
+            int stored = 0;
+            while (!Uninterruptibles.awaitUninterruptibly(job.remaining, 500, TimeUnit.MILLISECONDS)) {
+                if (!stopped && (System.currentTimeMillis() > deadline || AndroidUtility.isOnMobile(this))) {
+                    logger.info("Stopping preload before all items are finished");
+                    stopped = true;
+                }
 
-                    downloaded += 1;
-                } catch (IOException ioError) {
-                    failed += 1;
-                    logger.warn("Could not preload image id=" + item.id(), ioError);
+                if (job.finished.size() >= STORE_BATCH_SIZE) {
+                    stored += storeFinished(job);
                 }
+
+                showProgress(noBuilder, job, stored);
             }
 
+            stored += storeFinished(job);
+
             // doing cleanup
             doCleanup(noBuilder, Instant.now().minus(standardDays(1)));
 
             // setting end message
-            showEndMessage(noBuilder, downloaded, failed);
+            showEndMessage(noBuilder, stored, job.failed.get());
 
         } catch (Throwable error) {
             //noinspection ThrowableResultOfMethodCallIgnored
@@ -185,6 +222,9 @@ public class PreloadService extends IntentService {
             noBuilder.setContentTitle(getString(R.string.preload_failed));
 
         } finally {
+            mediaPool.shutdownNow();
+            thumbnailPool.shutdownNow();
+
             try {
                 logger.info("Releasing wake lock");
                 wakeLock.release();
@@ -207,6 +247,47 @@ public class PreloadService extends IntentService {
         }
     }
 
+    private static ExecutorService newPool(String name, int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("PreloadService-" + name + "-%d")
+                .build());
+    }
+
+    /**
+     * Stores all finished items using one transaction. Returns the number of stored items.
+     */
+    private int storeFinished(Job job) {
+        List<PreloadManager.PreloadItem> batch = new ArrayList<>();
+
+        PreloadManager.PreloadItem item;
+        while ((item = job.finished.poll()) != null) {
+            batch.add(item);
+        }
+
+        if (!batch.isEmpty()) {
+            preloadManager.store(batch);
+        }
+
+        return batch.size();
+    }
+
+    private void showProgress(NotificationCompat.Builder noBuilder, Job job, int stored) {
+        String msg = shouldStop()
+                ? getString(R.string.preload_sub_finished)
+                : getString(R.string.preload_sub_downloaded, stored);
+
+        show(noBuilder.setContentText(msg).setProgress(1000, job.progress(), false));
+    }
+
+    private boolean shouldStop() {
+        return canceled || stopped;
+    }
+
+    private void show(NotificationCompat.Builder noBuilder) {
+        notificationManager.notify(NotificationService.NOTIFICATION_PRELOAD_ID, noBuilder.build());
+    }
+
     private void showEndMessage(NotificationCompat.Builder noBuilder, int downloaded, int failed) {
         List<String> contentText = new ArrayList<>();
         contentText.add(getString(R.string.preload_sub_downloaded, downloaded));
@@ -224,18 +305,27 @@ public class PreloadService extends IntentService {
     }
 
     /**
-     * Cleaning old files before the given threshold.
+     * Removes partial downloads that were not resumed since the given threshold.
+     * Preloaded items are removed by the preload manager once they exceed the budget.
      */
     private void doCleanup(NotificationCompat.Builder noBuilder, Instant threshold) {
         show(noBuilder
                 .setContentText(getString(R.string.preload_cleanup))
                 .setProgress(0, 0, true));
 
-        preloadManager.deleteBefore(threshold);
+        File[] files = preloadCache.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                boolean partial = file.getName().endsWith(".tmp") || file.getName().endsWith(".segments");
+                if (partial && file.lastModified() < threshold.getMillis() && !file.delete()) {
+                    logger.warn("Could not delete partial file {}", file);
+                }
+            }
+        }
     }
 
-    private void download(NotificationCompat.Builder noBuilder, int index, int total,
-                          Uri uri, File targetFile) throws IOException {
+    private void download(Transfer transfer, long itemId) throws IOException {
+        File targetFile = transfer.target;
 
         // if the file exists, we dont need to download it again
         if (targetFile.exists()) {
@@ -244,72 +334,90 @@ public class PreloadService extends IntentService {
             if (!targetFile.setLastModified(System.currentTimeMillis()))
                 logger.warn("Could not touch file {}", targetFile);
 
-            return;
+        } else {
+            fetch(transfer);
         }
 
-        File tempFile = new File(targetFile.getPath() + ".tmp");
-        try {
-            download(uri, tempFile, progress -> {
-                String msg;
-                int progressCurrent = (int) (100 * (index + progress));
-                int progressTotal = 100 * total;
-
-                if (canceled) {
-                    msg = getString(R.string.preload_sub_finished);
-                } else {
-                    msg = getString(R.string.preload_fetching, uri.getPath());
-                }
+        if (transfer.thumbnail) {
+            thumbnailPack.append(itemId, targetFile);
 
-                maybeShow(noBuilder.setContentText(msg).setProgress(progressTotal, progressCurrent, false));
-            });
+            if (!targetFile.delete())
+                logger.warn("Could not delete thumbnail file {}", targetFile);
+        }
 
-            if (!tempFile.renameTo(targetFile))
-                throw new IOException("Could not rename file");
+        transfer.progress = 1;
+    }
 
-        } catch (Throwable error) {
-            if (!tempFile.delete())
-                logger.warn("Could not remove temporary file");
+    /**
+     * Downloads or copies the file of the transfer into its target file.
+     */
+    private void fetch(Transfer transfer) throws IOException {
+        File targetFile = transfer.target;
 
-            Throwables.throwIfInstanceOf(error, IOException.class);
-            throw Throwables.propagate(error);
+        // A partial file is kept if the download fails or gets canceled.
+        // It will be resumed the next time the item is preloaded.
+        File tempFile = new File(targetFile.getPath() + ".tmp");
+
+        Optional<MediaCache.Entry> cached = mediaCache.getIfCached(transfer.uri);
+        if (cached.isPresent()) {
+            copyFromCache(cached.get(), tempFile, progress -> transfer.progress = progress);
+        } else {
+            downloadTo(transfer, tempFile);
         }
-    }
 
-    private void show(NotificationCompat.Builder noBuilder) {
-        notificationManager.notify(NotificationService.NOTIFICATION_PRELOAD_ID, noBuilder.build());
+        if (!tempFile.renameTo(targetFile))
+            throw new IOException("Could not rename file");
     }
 
-    private void maybeShow(NotificationCompat.Builder builder) {
-        long now = System.currentTimeMillis();
-        if (now - lastShown > 500) {
-            show(builder);
-            lastShown = now;
-        }
+    /**
+     * Downloads the file without the media cache, so that a large preload
+     * does not push all the other files out of the cache.
+     */
+    private void downloadTo(Transfer transfer, File tempFile) throws IOException {
+        logger.info("Start downloading {} to {}", transfer.uri, tempFile);
+
+        SegmentedDownloader downloader = new SegmentedDownloader(
+                httpClient, transfer.uri.toString(), tempFile, new SegmentedDownloader.Listener() {
+            private long totalSize = -1;
+
+            @Override
+            public void onSize(long totalSize) {
+                this.totalSize = totalSize;
+            }
+
+            @Override
+            public void onProgress(long available) throws IOException {
+                if (shouldStop())
+                    throw new IOException("Preloading was stopped");
+
+                if (totalSize > 0) {
+                    transfer.progress = (float) available / totalSize;
+                }
+            }
+        });
+
+        downloader.download();
     }
 
+    /**
+     * Copies the file from the media cache. If the file is currently downloaded for
+     * someone else, for example because the post is open, we share that download.
+     */
     @SuppressLint("NewApi")
-    private void download(Uri uri, File targetFile, Action1<Float> progress) throws IOException {
-        logger.info("Start downloading {} to {}", uri, targetFile);
+    private static void copyFromCache(MediaCache.Entry cached, File targetFile,
+                                      Action1<Float> progress) throws IOException {
 
-        Request request = new Request.Builder().get().url(uri.toString()).build();
-        Response response = httpClient.newCall(request).execute();
+        try (MediaCache.Entry entry = cached) {
+            long contentLength = entry.totalSize();
 
-        long contentLength = response.body().contentLength();
-
-        try (InputStream inputStream = response.body().byteStream()) {
-            try (OutputStream outputStream = new FileOutputStream(targetFile)) {
-                if (contentLength < 0) {
-                    progress.call(0.0f);
-                    ByteStreams.copy(inputStream, outputStream);
-                    progress.call(1.0f);
-                } else {
+            try (InputStream inputStream = entry.get()) {
+                try (OutputStream outputStream = new FileOutputStream(targetFile)) {
                     copyWithProgress(progress, contentLength, inputStream, outputStream);
                 }
             }
         }
     }
 
-
     /**
      * Name of the cache file for the given {@link Uri}.
      */
@@ -343,4 +451,110 @@ public class PreloadService extends IntentService {
         intent.putParcelableArrayListExtra(EXTRA_LIST_OF_ITEMS, newArrayList(items));
         return intent;
     }
+
+    /**
+     * The state of one preload job, shared between all download threads.
+     */
+    private static final class Job {
+        final CountDownLatch remaining;
+        final List<Transfer> transfers = new ArrayList<>();
+        final ConcurrentLinkedQueue<PreloadManager.PreloadItem> finished = new ConcurrentLinkedQueue<>();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Job(int itemCount) {
+            this.remaining = new CountDownLatch(itemCount);
+        }
+
+        /**
+         * Progress of all transfers in per mille.
+         */
+        int progress() {
+            if (transfers.isEmpty())
+                return 1000;
+
+            float sum = 0;
+            for (Transfer transfer : transfers) {
+                sum += transfer.progress;
+            }
+
+            return (int) (1000 * sum / transfers.size());
+        }
+    }
+
+    /**
+     * A file that needs to be downloaded.
+     */
+    private static final class Transfer {
+        final Uri uri;
+        final File target;
+        final boolean thumbnail;
+        volatile float progress;
+
+        Transfer(Uri uri, File target, boolean thumbnail) {
+            this.uri = uri;
+            this.target = target;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    /**
+     * An item waiting for its media and thumbnail downloads. Once all of them
+     * succeeded, the item is queued to be stored in the preload manager.
+     */
+    private final class PendingItem {
+        private final Job job;
+        private final PreloadManager.PreloadItem entry;
+
+        // one extra count, released once all transfers are scheduled.
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean failed, skipped;
+
+        PendingItem(Job job, PreloadManager.PreloadItem entry) {
+            this.job = job;
+            this.entry = entry;
+        }
+
+        void schedule(ExecutorService pool, Transfer transfer) {
+            job.transfers.add(transfer);
+            pending.incrementAndGet();
+
+            pool.execute(() -> {
+                try {
+                    if (shouldStop()) {
+                        skipped = true;
+                    } else {
+                        download(transfer, entry.itemId());
+                    }
+
+                } catch (IOException | RuntimeException err) {
+                    if (shouldStop()) {
+                        skipped = true;
+                    } else {
+                        logger.warn("Could not preload " + transfer.uri, err);
+                        failed = true;
+                    }
+
+                } finally {
+                    transferFinished();
+                }
+            });
+        }
+
+        void scheduled() {
+            transferFinished();
+        }
+
+        private void transferFinished() {
+            if (pending.decrementAndGet() > 0)
+                return;
+
+            if (failed) {
+                job.failed.incrementAndGet();
+            } else if (!skipped) {
+                job.finished.add(entry);
+            }
+
+            job.remaining.countDown();
+        }
+    }
 }
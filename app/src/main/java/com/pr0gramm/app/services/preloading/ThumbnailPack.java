@@ -0,0 +1,455 @@
+package com.pr0gramm.app.services.preloading;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.net.Uri;
+
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import gnu.trove.TLongCollection;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Stores the thumbnails of preloaded items in one append-only file, so that a large
+ * preload does not create thousands of small files. Each record consists of a header with
+ * the id of the item and the length of the data, followed by the data itself.
+ * <p>
+ * The offsets of the records are not stored, they are collected by reading the headers
+ * when the pack is opened. A record written later replaces a previous record of the same
+ * item. An incomplete record at the end of the file, e.g. after a crash, is cut off.
+ * <p>
+ * Removed records stay in the file until the pack is compacted. As removals are not
+ * written to the file, the owner of the pack must call {@link #retainAll(TLongCollection)}
+ * with the ids of the known items after the pack was opened. Records appended since then
+ * are kept, as their items might not be stored yet.
+ * <p>
+ * Thumbnails are read using a memory mapping of the file.
+ */
+@Singleton
+public class ThumbnailPack {
+    private static final Logger logger = LoggerFactory.getLogger("ThumbnailPack");
+
+    private static final String SCHEME = "preloaded-thumbnail";
+
+    private static final int RECORD_MAGIC = 0x70723074;
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+
+    // compact only if there is a reasonable amount of garbage
+    private static final long MIN_GARBAGE_SIZE = 512 * 1024;
+
+    private final File file;
+
+    // all of the following fields are guarded by this.
+    private final TLongLongMap offsets = new TLongLongHashMap();
+    private final TLongIntMap lengths = new TLongIntHashMap();
+
+    // ids of the records that were read when the pack was opened and not appended again.
+    private final TLongSet openedIds = new TLongHashSet();
+
+    private RandomAccessFile output;
+    private MappedByteBuffer mapping;
+    private long garbage;
+
+    // set once the records were read, can be checked without the lock.
+    private volatile boolean opened;
+
+    @Inject
+    public ThumbnailPack(Context context) {
+        this.file = new File(DatabasePreloadManager.directory(context), "thumbnails.pack");
+    }
+
+    /**
+     * Returns the uri to load the thumbnail of the given item using picasso.
+     */
+    public static Uri uriOf(long itemId) {
+        return new Uri.Builder().scheme(SCHEME).authority(String.valueOf(itemId)).build();
+    }
+
+    public static boolean isPackUri(Uri uri) {
+        return SCHEME.equals(uri.getScheme());
+    }
+
+    public static long itemIdOf(Uri uri) {
+        return Long.parseLong(uri.getAuthority());
+    }
+
+    /**
+     * The file containing all thumbnails.
+     */
+    File file() {
+        return file;
+    }
+
+    /**
+     * Opens the pack and reads the headers of all records. This scans the whole
+     * file, call it from a background thread before the pack is used elsewhere.
+     */
+    public synchronized void open() {
+        ensureOpen();
+    }
+
+    /**
+     * Returns true, if the records of the pack were already read. Does not block.
+     */
+    public boolean isOpen() {
+        return opened;
+    }
+
+    public synchronized boolean contains(long itemId) {
+        ensureOpen();
+        return offsets.containsKey(itemId);
+    }
+
+    /**
+     * Returns the size of the thumbnail of the given item, or zero if there is no thumbnail.
+     */
+    public synchronized long sizeOf(long itemId) {
+        ensureOpen();
+        return lengths.get(itemId);
+    }
+
+    /**
+     * Returns the number of bytes used by the pack.
+     */
+    public long size() {
+        return file.length();
+    }
+
+    /**
+     * Appends the content of the given file as the thumbnail of the given item.
+     */
+    public void append(long itemId, File source) throws IOException {
+        byte[] data = Files.toByteArray(source);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        record.putInt(RECORD_MAGIC).putLong(itemId).putInt(data.length).put(data);
+        record.flip();
+
+        synchronized (this) {
+            ensureOpen();
+            if (output == null)
+                throw new IOException("Thumbnail pack is not available");
+
+            FileChannel channel = output.getChannel();
+            long offset = channel.size();
+
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record, offset + record.position());
+                }
+
+            } catch (IOException err) {
+                // do not leave a partial record behind
+                channel.truncate(offset);
+                throw err;
+            }
+
+            putRecord(itemId, offset + HEADER_SIZE, data.length);
+            openedIds.remove(itemId);
+        }
+    }
+
+    /**
+     * Opens a stream to read the thumbnail of the given item.
+     */
+    public InputStream openStream(long itemId) throws IOException {
+        Optional<ByteBuffer> buffer = read(itemId);
+        if (!buffer.isPresent())
+            throw new FileNotFoundException("No thumbnail for item " + itemId);
+
+        return new ByteBufferInputStream(buffer.get());
+    }
+
+    /**
+     * Returns a read-only view of the thumbnail of the given item, if available.
+     */
+    public synchronized Optional<ByteBuffer> read(long itemId) throws IOException {
+        ensureOpen();
+
+        if (output == null || !offsets.containsKey(itemId))
+            return Optional.absent();
+
+        long offset = offsets.get(itemId);
+        int length = lengths.get(itemId);
+
+        // the file might have grown since it was mapped the last time.
+        if (mapping == null || mapping.capacity() < offset + length) {
+            mapping = output.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, output.length());
+        }
+
+        ByteBuffer slice = mapping.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) (offset + length));
+        return Optional.of(slice.slice());
+    }
+
+    public synchronized void remove(long itemId) {
+        ensureOpen();
+
+        if (offsets.containsKey(itemId)) {
+            garbage += HEADER_SIZE + lengths.get(itemId);
+            offsets.remove(itemId);
+            lengths.remove(itemId);
+        }
+    }
+
+    /**
+     * Removes the thumbnails of all items that are not in the given collection. Only
+     * records that were already in the pack when it was opened are removed, a running
+     * preload appends thumbnails before it stores their items.
+     */
+    public synchronized void retainAll(TLongCollection itemIds) {
+        ensureOpen();
+
+        for (long itemId : openedIds.toArray()) {
+            if (!itemIds.contains(itemId)) {
+                remove(itemId);
+            }
+        }
+
+        openedIds.clear();
+    }
+
+    /**
+     * Rewrites the pack without the removed thumbnails, if they use a lot of space.
+     * The thumbnails are not available for other threads while the pack is compacted.
+     */
+    @SuppressLint("NewApi")
+    public synchronized void compactIfNeeded() {
+        ensureOpen();
+
+        if (output == null || garbage < MIN_GARBAGE_SIZE || 2 * garbage < file.length())
+            return;
+
+        logger.info("Compacting thumbnail pack, {} kb are unused", garbage / 1024);
+
+        File temp = new File(file.getPath() + ".tmp");
+        TLongLongMap newOffsets = new TLongLongHashMap();
+
+        try (RandomAccessFile compacted = new RandomAccessFile(temp, "rw")) {
+            compacted.setLength(0);
+
+            FileChannel source = output.getChannel();
+            FileChannel target = compacted.getChannel();
+
+            for (long itemId : offsets.keys()) {
+                long position = target.size();
+                newOffsets.put(itemId, position + HEADER_SIZE);
+
+                long start = offsets.get(itemId) - HEADER_SIZE;
+                long count = HEADER_SIZE + lengths.get(itemId);
+                while (count > 0) {
+                    long transferred = source.transferTo(start, count, target);
+                    start += transferred;
+                    count -= transferred;
+                }
+            }
+
+        } catch (IOException err) {
+            logger.warn("Could not compact thumbnail pack", err);
+
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+
+        close();
+
+        if (!temp.renameTo(file)) {
+            logger.warn("Could not replace thumbnail pack");
+
+            // the old file is still complete, continue to use it.
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            openOutput();
+            return;
+        }
+
+        offsets.clear();
+        offsets.putAll(newOffsets);
+        garbage = 0;
+
+        // the mapping of the old file stays valid for thumbnails that are still read.
+        openOutput();
+    }
+
+    private void putRecord(long itemId, long offset, int length) {
+        if (offsets.containsKey(itemId)) {
+            garbage += HEADER_SIZE + lengths.get(itemId);
+        }
+
+        offsets.put(itemId, offset);
+        lengths.put(itemId, length);
+    }
+
+    /**
+     * Opens the pack and reads the headers of all records, if not yet done.
+     */
+    private void ensureOpen() {
+        if (output != null)
+            return;
+
+        if (!openOutput())
+            return;
+
+        try {
+            readRecords();
+        } catch (IOException err) {
+            logger.warn("Could not read thumbnail pack, starting a new one", err);
+            offsets.clear();
+            lengths.clear();
+            openedIds.clear();
+            truncate(0);
+        }
+
+        opened = true;
+    }
+
+    private boolean openOutput() {
+        File directory = file.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            logger.warn("Could not create directory for thumbnail pack");
+            return false;
+        }
+
+        try {
+            output = new RandomAccessFile(file, "rw");
+            mapping = null;
+            return true;
+
+        } catch (IOException err) {
+            logger.warn("Could not open thumbnail pack", err);
+            return false;
+        }
+    }
+
+    private void readRecords() throws IOException {
+        long size = output.length();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        FileChannel channel = output.getChannel();
+
+        long position = 0;
+        while (position < size) {
+            header.clear();
+            try {
+                while (header.hasRemaining()) {
+                    if (channel.read(header, position + header.position()) < 0)
+                        throw new EOFException();
+                }
+
+            } catch (EOFException err) {
+                break;
+            }
+
+            header.flip();
+            int magic = header.getInt();
+            long itemId = header.getLong();
+            int length = header.getInt();
+
+            if (magic != RECORD_MAGIC || length < 0 || position + HEADER_SIZE + length > size)
+                break;
+
+            putRecord(itemId, position + HEADER_SIZE, length);
+            openedIds.add(itemId);
+            position += HEADER_SIZE + length;
+        }
+
+        if (position < size) {
+            logger.info("Cutting off incomplete thumbnail record at {}", position);
+            truncate(position);
+        }
+    }
+
+    private void truncate(long size) {
+        try {
+            output.setLength(size);
+        } catch (IOException err) {
+            logger.warn("Could not truncate thumbnail pack", err);
+        }
+    }
+
+    private void close() {
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+
+        output = null;
+        mapping = null;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (!buffer.hasRemaining())
+                return -1;
+
+            count = Math.min(count, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.min(count, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.pr0gramm.app.services.preloading;
+
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Request;
+import com.squareup.picasso.RequestHandler;
+
+import java.io.IOException;
+
+/**
+ * Lets picasso load thumbnails from the {@link ThumbnailPack}.
+ */
+public class ThumbnailPackRequestHandler extends RequestHandler {
+    private final ThumbnailPack thumbnailPack;
+
+    public ThumbnailPackRequestHandler(ThumbnailPack thumbnailPack) {
+        this.thumbnailPack = thumbnailPack;
+    }
+
+    @Override
+    public boolean canHandleRequest(Request data) {
+        return data.uri != null && ThumbnailPack.isPackUri(data.uri);
+    }
+
+    @Override
+    public Result load(Request request, int networkPolicy) throws IOException {
+        long itemId = ThumbnailPack.itemIdOf(request.uri);
+        return new Result(thumbnailPack.openStream(itemId), Picasso.LoadedFrom.DISK);
+    }
+}
@@ -0,0 +1,74 @@
+package com.pr0gramm.app.services.proxy;
+
+import android.support.annotation.Nullable;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single byte range of a http range request, with inclusive start and end.
+ */
+final class ByteRange {
+    private static final Pattern PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    final long start;
+    final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Value for the "Content-Range" header of a response to this range.
+     */
+    String contentRange(long totalSize) {
+        return "bytes " + start + "-" + end + "/" + totalSize;
+    }
+
+    /**
+     * Returns true, if no byte of this range is inside of a file with the given size.
+     */
+    boolean unsatisfiable(long totalSize) {
+        return start >= totalSize || start > end;
+    }
+
+    /**
+     * Parses the value of a "Range" header for a file of the given size. Returns null if
+     * there is no header, or if it can not be parsed. In that case, the complete file
+     * should be sent. Requests for multiple ranges are not supported and also return null.
+     */
+    @Nullable
+    static ByteRange parse(@Nullable String header, long totalSize) {
+        if (header == null || totalSize <= 0)
+            return null;
+
+        Matcher matcher = PATTERN.matcher(header.trim());
+        if (!matcher.matches())
+            return null;
+
+        String start = matcher.group(1);
+        String end = matcher.group(2);
+
+        try {
+            if (start.isEmpty()) {
+                // a suffix range, "bytes=-500" are the last 500 bytes.
+                if (end.isEmpty())
+                    return null;
+
+                long suffix = Math.min(Long.parseLong(end), totalSize);
+                return new ByteRange(totalSize - suffix, totalSize - 1);
+            }
+
+            long last = end.isEmpty() ? totalSize - 1 : Math.min(Long.parseLong(end), totalSize - 1);
+            return new ByteRange(Long.parseLong(start), last);
+
+        } catch (NumberFormatException err) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,679 @@
+package com.pr0gramm.app.services.proxy;
+
+import android.net.Uri;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pr0gramm.app.io.MediaCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.pr0gramm.app.util.AndroidUtility.toFile;
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * A small http server on the loopback interface that serves media files to the android
+ * media player and the download manager. All connections are handled by one selector thread.
+ * <p>
+ * Requests are parsed and local files are answered on the selector thread. Local files are
+ * sent using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so their bytes are never copied into the java heap. Remote files are read from the
+ * {@link MediaCache} on worker threads into a reused direct buffer, as reading might wait for
+ * the download. A buffer is only refilled once the client has received its content, so a slow
+ * client does not cause the proxy to buffer more data.
+ */
+public class NioProxyService implements ProxyService, Closeable {
+    static final Logger logger = LoggerFactory.getLogger("NioProxyService");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    /**
+     * Runs everything that waits for the media cache. Each waiting connection gets
+     * its own thread, so a stalled download does not delay any other response.
+     */
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("NioProxyService-%d").build());
+
+    private final String nonce;
+    private final MediaCache mediaCache;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final int port;
+
+    // tasks that need to be run on the selector thread
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+    // direct buffers are expensive to allocate, so we keep a few of them.
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    public NioProxyService(MediaCache mediaCache) throws IOException {
+        this.mediaCache = mediaCache;
+        this.nonce = Hashing.md5().hashLong(currentTimeMillis()).toString();
+
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+
+        try {
+            // let the system choose a free port
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+        } catch (IOException err) {
+            close();
+            throw err;
+        }
+
+        this.port = server.socket().getLocalPort();
+        logger.info("Open proxy on port {}", port);
+    }
+
+    /**
+     * Starts the selector thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "NioProxyService");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.close();
+        } finally {
+            selector.close();
+        }
+    }
+
+    @Override
+    public Uri proxy(Uri uri) {
+        // do not proxy twice!
+        String uriString = uri.toString();
+        if (uriString.contains(nonce) && uriString.contains("127.0.0.1"))
+            return uri;
+
+        // append the name at the end of the generated uri.
+        String name = firstNonNull(uri.getLastPathSegment(), "name");
+
+        String encoded = BaseEncoding.base64Url().encode(uriString.getBytes(Charsets.UTF_8));
+        return new Uri.Builder()
+                .scheme("http")
+                .encodedAuthority("127.0.0.1:" + port)
+                .appendPath(nonce)
+                .appendPath(encoded)
+                .appendPath(name)
+                .build();
+    }
+
+    /**
+     * Returns the original uri of an uri created by {@link #proxy(Uri)},
+     * or absent, if the uri does not point to a local proxy.
+     */
+    public static Optional<Uri> unproxy(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (!"127.0.0.1".equals(uri.getHost()) || segments.size() < 2)
+            return Optional.absent();
+
+        return Optional.of(Uri.parse(decodeUrl(segments.get(1))));
+    }
+
+    private static String decodeUrl(String encoded) {
+        return new String(BaseEncoding.base64Url().decode(encoded), Charsets.UTF_8).trim();
+    }
+
+    private void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    handleKey(key);
+                }
+            }
+
+        } catch (ClosedSelectorException ignored) {
+            // the proxy was closed.
+
+        } catch (IOException err) {
+            logger.error("Proxy stopped because of an error", err);
+        }
+
+        logger.info("Proxy on port {} stopped", port);
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid())
+            return;
+
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+
+            } else if (key.isWritable()) {
+                connection.onWritable();
+            }
+
+        } catch (IOException | RuntimeException err) {
+            logger.warn("Error while handling proxy connection: {}", err.toString());
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null)
+                return;
+
+            channel.configureBlocking(false);
+
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+
+        } catch (IOException err) {
+            logger.warn("Could not accept connection: {}", err.toString());
+        }
+    }
+
+    /**
+     * Runs the given task on the selector thread.
+     */
+    void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    ByteBuffer acquireBuffer() {
+        synchronized (buffers) {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+        synchronized (buffers) {
+            if (buffers.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                buffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Parses the request on the selector thread. Local files are answered right away,
+     * responses of the media cache are prepared on a worker thread, as they might block.
+     */
+    void handleRequest(Connection connection, String request) {
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            connection.send(Response.status(400, "Bad Request"));
+            return;
+        }
+
+        String method = requestLine[0];
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            connection.send(Response.status(405, "Method Not Allowed"));
+            return;
+        }
+
+        String rangeHeader = null;
+        for (String line : lines) {
+            if (line.regionMatches(true, 0, "range:", 0, 6)) {
+                rangeHeader = line.substring(6).trim();
+            }
+        }
+
+        logger.info("New request for {}", requestLine[1]);
+
+        Uri uri = Uri.parse(requestLine[1]);
+        if (!nonce.equals(Iterables.getFirst(uri.getPathSegments(), null))) {
+            logger.info("Got request with invalid nonce: {}", uri);
+            connection.send(Response.status(403, "Forbidden"));
+            return;
+        }
+
+        String url = decodeUrl(uri.getPathSegments().get(1));
+        logger.info("Decoded request to {}", url);
+
+        boolean head = method.equals("HEAD");
+        String range = rangeHeader;
+
+        if (url.matches("https?://.*")) {
+            WORKERS.execute(() -> {
+                Response response = respondSafely(() -> respondWithCache(url, range), head);
+                runOnSelector(() -> connection.send(response));
+            });
+
+        } else {
+            connection.send(respondSafely(() -> respondWithFile(toFile(Uri.parse(url)), range), head));
+        }
+    }
+
+    private static Response respondSafely(Callable<Response> responder, boolean head) {
+        Response response;
+        try {
+            response = responder.call();
+
+        } catch (Throwable error) {
+            logger.error("Could not proxy request", error);
+            return Response.status(500, "Internal Server Error");
+        }
+
+        if (head && response.body != null) {
+            response.body.close();
+            response.body = null;
+        }
+
+        return response;
+    }
+
+    private Response respondWithFile(File file, String rangeHeader) throws IOException {
+        if (!file.exists())
+            return Response.status(404, "Not Found");
+
+        long size = file.length();
+        ByteRange range = ByteRange.parse(rangeHeader, size);
+        if (range != null && range.unsatisfiable(size))
+            return Response.rangeNotSatisfiable(size);
+
+        long start = range != null ? range.start : 0;
+        long length = range != null ? range.length() : size;
+
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        return Response.media(guessContentType(file.toString()), range, size,
+                new FileBody(channel, start, length));
+    }
+
+    private Response respondWithCache(String url, String rangeHeader) throws IOException {
+        MediaCache.Entry entry = mediaCache.get(Uri.parse(url));
+
+        long size;
+        try {
+            size = entry.totalSize();
+        } catch (IOException error) {
+            entry.close();
+            throw error;
+        }
+
+        ByteRange range = ByteRange.parse(rangeHeader, size);
+        if (range != null && range.unsatisfiable(size)) {
+            entry.close();
+            return Response.rangeNotSatisfiable(size);
+        }
+
+        long start = range != null ? range.start : 0;
+        long length = range != null ? range.length() : size;
+
+        logger.info("Start sending {} ({} kb) at {}", url, size / 1024, start);
+        return Response.media(guessContentType(url), range, size,
+                new StreamBody(entry.inputStreamAt(start), entry, length));
+    }
+
+    /**
+     * Guess a content type from the URL.
+     *
+     * @param url The url to guess the content stream for.
+     */
+    private static String guessContentType(String url) {
+        url = url.toLowerCase();
+        if (url.endsWith(".webm")) {
+            return "video/webm";
+        } else if (url.endsWith(".mp4")) {
+            return "video/mp4";
+        } else if (url.matches(".*\\.jpe?g")) {
+            return "image/jpeg";
+        } else if (url.endsWith(".png")) {
+            return "image/png";
+        } else if (url.endsWith(".gif")) {
+            return "image/gif";
+        } else {
+            return "application/octet-stream";
+        }
+    }
+
+    /**
+     * The status, headers and body of a response.
+     */
+    private static final class Response {
+        final ByteBuffer head;
+        Body body;
+
+        Response(String head, Body body) {
+            this.head = ByteBuffer.wrap(head.getBytes(Charsets.US_ASCII));
+            this.body = body;
+        }
+
+        static Response status(int code, String reason) {
+            return new Response(statusLine(code, reason) + "Content-Length: 0\r\n\r\n", null);
+        }
+
+        static Response rangeNotSatisfiable(long size) {
+            return new Response(statusLine(416, "Range Not Satisfiable")
+                    + "Content-Range: bytes */" + size + "\r\n"
+                    + "Content-Length: 0\r\n\r\n", null);
+        }
+
+        static Response media(String contentType, ByteRange range, long size, Body body) {
+            StringBuilder head = new StringBuilder();
+            if (range != null) {
+                head.append(statusLine(206, "Partial Content"));
+                head.append("Content-Range: ").append(range.contentRange(size)).append("\r\n");
+            } else {
+                head.append(statusLine(200, "OK"));
+            }
+
+            long length = range != null ? range.length() : size;
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+            head.append("Content-Length: ").append(length).append("\r\n");
+            head.append("Accept-Ranges: bytes\r\n");
+            head.append("Cache-Control: no-cache\r\n");
+            head.append("\r\n");
+
+            return new Response(head.toString(), body);
+        }
+
+        private static String statusLine(int code, String reason) {
+            // each connection serves exactly one request.
+            return "HTTP/1.1 " + code + " " + reason + "\r\n" + "Connection: close\r\n";
+        }
+    }
+
+    /**
+     * The body of a response. It is written to the connection once the head was sent.
+     */
+    private interface Body extends Closeable {
+        /**
+         * Writes the next part of the body. Returns true, once the body is complete.
+         */
+        boolean writeTo(Connection connection) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Sends a part of a file without copying it into the java heap.
+     */
+    private static final class FileBody implements Body {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileBody(FileChannel file, long position, long length) {
+            this.file = file;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public boolean writeTo(Connection connection) throws IOException {
+            long written = file.transferTo(position, remaining, connection.channel);
+            position += written;
+            remaining -= written;
+            return remaining == 0;
+        }
+
+        @Override
+        public void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Sends bytes of a blocking stream. The stream is read on a worker thread into a
+     * direct buffer. While the buffer is being filled, the connection does not wait for
+     * writes. After the buffer was sent, it is filled again.
+     */
+    private final class StreamBody implements Body {
+        private final ReadableByteChannel source;
+        private final Closeable resource;
+        private final ByteBuffer buffer = acquireBuffer();
+
+        private long remaining;
+
+        // guarded by this
+        private boolean filling;
+        private boolean closed;
+
+        StreamBody(InputStream stream, Closeable resource, long length) {
+            this.source = Channels.newChannel(stream);
+            this.resource = resource;
+            this.remaining = length;
+
+            // start with an empty buffer
+            buffer.limit(0);
+        }
+
+        @Override
+        public boolean writeTo(Connection connection) throws IOException {
+            if (buffer.hasRemaining()) {
+                connection.channel.write(buffer);
+
+                // wait until the socket accepts more data
+                if (buffer.hasRemaining())
+                    return false;
+            }
+
+            if (remaining == 0)
+                return true;
+
+            connection.suspend();
+            fill(connection);
+            return false;
+        }
+
+        private void fill(Connection connection) {
+            synchronized (this) {
+                filling = true;
+            }
+
+            WORKERS.execute(() -> {
+                IOException error = null;
+                try {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) < 0)
+                            throw new IOException("Stream ended unexpectedly");
+                    }
+
+                    remaining -= buffer.position();
+                    buffer.flip();
+
+                } catch (IOException err) {
+                    error = err;
+                }
+
+                synchronized (this) {
+                    filling = false;
+
+                    if (closed) {
+                        release();
+                        return;
+                    }
+                }
+
+                if (error != null) {
+                    logger.warn("Could not read from media cache: {}", error.toString());
+                    runOnSelector(connection::close);
+                } else {
+                    runOnSelector(connection::resume);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+
+                // the worker releases everything once it is done
+                if (filling)
+                    return;
+            }
+
+            release();
+        }
+
+        private void release() {
+            releaseBuffer(buffer);
+
+            try {
+                source.close();
+            } catch (IOException ignored) {
+            }
+
+            try {
+                resource.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A connection of a client. All methods run on the selector thread.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private Response response;
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(request) < 0) {
+                close();
+                return;
+            }
+
+            String head = new String(request.array(), 0, request.position(), Charsets.US_ASCII);
+            int end = head.indexOf("\r\n\r\n");
+            if (end < 0) {
+                if (!request.hasRemaining()) {
+                    send(Response.status(431, "Request Header Fields Too Large"));
+                }
+
+                return;
+            }
+
+            // stop reading, each connection serves exactly one request.
+            key.interestOps(0);
+            handleRequest(this, head.substring(0, end));
+        }
+
+        void onWritable() throws IOException {
+            if (response.head.hasRemaining()) {
+                channel.write(response.head);
+                if (response.head.hasRemaining())
+                    return;
+            }
+
+            if (response.body == null || response.body.writeTo(this)) {
+                close();
+            }
+        }
+
+        void send(Response response) {
+            if (closed) {
+                if (response.body != null)
+                    response.body.close();
+
+                return;
+            }
+
+            this.response = response;
+            resume();
+        }
+
+        void suspend() {
+            key.interestOps(0);
+        }
+
+        void resume() {
+            if (!closed) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+
+            closed = true;
+            key.cancel();
+
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+
+            if (response != null && response.body != null) {
+                response.body.close();
+            }
+        }
+    }
+}
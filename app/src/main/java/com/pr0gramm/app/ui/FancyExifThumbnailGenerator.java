@@ -18,6 +18,7 @@ import android.support.annotation.NonNull;
 
 import com.google.common.io.ByteStreams;
 import com.pr0gramm.app.R;
+import com.pr0gramm.app.services.preloading.ThumbnailPack;
 import com.squareup.picasso.Downloader;
 
 import java.io.IOException;
@@ -34,12 +35,14 @@ import it.sephiroth.android.library.exif2.ExifInterface;
 @Singleton
 public class FancyExifThumbnailGenerator {
     private final Downloader downloader;
+    private final ThumbnailPack thumbnailPack;
     private final Bitmap maskV;
     private final Bitmap maskH;
 
     @Inject
-    public FancyExifThumbnailGenerator(Context context, Downloader downloader) {
+    public FancyExifThumbnailGenerator(Context context, Downloader downloader, ThumbnailPack thumbnailPack) {
         this.downloader = downloader;
+        this.thumbnailPack = thumbnailPack;
         maskV = BitmapFactory.decodeResource(context.getResources(), R.raw.mask_v);
         maskH = BitmapFactory.decodeResource(context.getResources(), R.raw.mask_h);
     }
@@ -126,8 +129,11 @@ public class FancyExifThumbnailGenerator {
     @SuppressLint("NewApi")
     private byte[] fetch(Uri uri) throws IOException {
         byte[] bytes;
-        Downloader.Response response = downloader.load(uri, 0);
-        try (InputStream input = response.getInputStream()) {
+        InputStream stream = ThumbnailPack.isPackUri(uri)
+                ? thumbnailPack.openStream(ThumbnailPack.itemIdOf(uri))
+                : downloader.load(uri, 0).getInputStream();
+
+        try (InputStream input = stream) {
             bytes = ByteStreams.toByteArray(input);
         }
         return bytes;
@@ -24,6 +24,7 @@ import com.pr0gramm.app.services.RecentSearchesServices;
 import com.pr0gramm.app.services.ThemeHelper;
 import com.pr0gramm.app.services.UserService;
 import com.pr0gramm.app.services.preloading.PreloadManager;
+import com.pr0gramm.app.services.preloading.ThumbnailPack;
 import com.pr0gramm.app.ui.base.BaseAppCompatActivity;
 import com.pr0gramm.app.ui.dialogs.UpdateDialogFragment;
 import com.pr0gramm.app.ui.intro.IntroActivity;
@@ -92,6 +93,9 @@ public class SettingsActivity extends BaseAppCompatActivity {
         @Inject
         PreloadManager preloadManager;
 
+        @Inject
+        ThumbnailPack thumbnailPack;
+
         @Inject
         OkHttpClient okHttpClient;
 
@@ -178,10 +182,9 @@ public class SettingsActivity extends BaseAppCompatActivity {
                         .subscribeOn(BackgroundScheduler.instance())
                         .observeOn(AndroidSchedulers.mainThread())
                         .subscribe(items -> {
-                            long totalSize = 0;
+                            long totalSize = thumbnailPack.size();
                             for (PreloadManager.PreloadItem item : items) {
                                 totalSize += item.media().length();
-                                totalSize += item.thumbnail().length();
                             }
 
                             preference.setSummary(getString(pseudo_clean_preloaded_summary_with_size,
@@ -20,6 +20,7 @@ import com.pr0gramm.app.BuildConfig;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.services.ThemeHelper;
 import com.pr0gramm.app.services.UriHelper;
 import com.pr0gramm.app.services.proxy.ProxyService;
@@ -27,7 +28,6 @@ import com.pr0gramm.app.ui.base.BaseAppCompatActivity;
 import com.pr0gramm.app.util.AndroidUtility;
 import com.pr0gramm.app.util.PicassoDecoder;
 import com.pr0gramm.app.util.decoders.Decoders;
-import com.squareup.picasso.Downloader;
 import com.squareup.picasso.Picasso;
 import com.trello.rxlifecycle.android.RxLifecycleAndroid;
 
@@ -61,7 +61,7 @@ public class ZoomViewActivity extends BaseAppCompatActivity {
     Picasso picasso;
 
     @Inject
-    Downloader downloader;
+    MediaCache mediaCache;
 
     @Inject
     Settings settings;
@@ -80,7 +80,7 @@ public class ZoomViewActivity extends BaseAppCompatActivity {
         imageView.setMaxTileSize(4096);
         imageView.setDebug(BuildConfig.DEBUG);
         imageView.setBitmapDecoderFactory(() -> new PicassoDecoder(tag, picasso));
-        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(downloader));
+        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(mediaCache));
 
         rxImageLoaded(imageView)
                 .compose(RxLifecycleAndroid.bindActivity(lifecycle()))
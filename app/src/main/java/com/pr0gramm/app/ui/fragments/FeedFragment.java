@@ -11,6 +11,7 @@ import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v7.widget.GridLayoutManager;
@@ -29,7 +30,6 @@ import android.widget.ScrollView;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
-import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -41,10 +41,12 @@ import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.feed.ContentType;
 import com.pr0gramm.app.feed.Feed;
+import com.pr0gramm.app.feed.FeedChange;
 import com.pr0gramm.app.feed.FeedFilter;
 import com.pr0gramm.app.feed.FeedItem;
 import com.pr0gramm.app.feed.FeedLoader;
 import com.pr0gramm.app.feed.FeedService;
+import com.pr0gramm.app.feed.FeedSnapshotStore;
 import com.pr0gramm.app.feed.FeedType;
 import com.pr0gramm.app.feed.ImmutableFeedQuery;
 import com.pr0gramm.app.services.BookmarkService;
@@ -102,6 +104,8 @@ import java.util.Set;
 import javax.inject.Inject;
 
 import butterknife.BindView;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import rx.Observable;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.functions.Action1;
@@ -172,6 +176,9 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
     @Inject
     FollowingService followService;
 
+    @Inject
+    FeedSnapshotStore feedSnapshotStore;
+
     @BindView(R.id.list)
     RecyclerView recyclerView;
 
@@ -342,6 +349,11 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
 
         updateSpanSizeLookup();
 
+        // the seen posts might still be loading on a cold start.
+        seenService.loaded()
+                .compose(bindToLifecycleAsync())
+                .subscribe(ignored -> adapter.refreshSeenItems(), Actions.empty());
+
         if (!isSimpleMode()) {
             queryUserInfo()
                     .take(1)
@@ -586,6 +598,11 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
     private FeedAdapter newFeedAdapter(FeedFilter feedFilter, @Nullable Long around) {
         Feed feed = new Feed(feedFilter, getSelectedContentType());
 
+        // cancel all requests and prefetches of the previous feed
+        if (loader != null) {
+            loader.stop();
+        }
+
         loader = new FeedLoader(new FeedLoader.Binder() {
             @Override
             public <T> Observable.Transformer<T, T> bind() {
@@ -601,6 +618,9 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
             }
         }, feedService, feed);
 
+        // keep fewer items in memory on devices with a small heap
+        loader.setWindowSize(AndroidUtility.isLowMemoryDevice(getActivity()) ? 300 : 1000);
+
         // start loading now
         loader.restart(fromNullable(around));
 
@@ -642,6 +662,9 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
             feedAdapter.notifyDataSetChanged();
         }
 
+        // items might have been seen in the meantime.
+        feedAdapter.refreshSeenItems();
+
         preloadManager.all()
                 .compose(bindToLifecycleAsync())
                 .subscribe(ignored -> feedAdapter.notifyDataSetChanged());
@@ -923,7 +946,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
             return;
 
         try {
-            PostPagerFragment fragment = PostPagerFragment.newInstance(feed, idx, commentId);
+            PostPagerFragment fragment = PostPagerFragment.newInstance(feedSnapshotStore, feed, idx, commentId);
 
             if (preview.isPresent()) {
                 // pass pixels info to target fragment.
@@ -985,8 +1008,16 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
         return feedAdapter.getFilter();
     }
 
-    boolean isSeen(FeedItem item) {
-        return seenService.isSeen(item);
+    /**
+     * Looks up the seen state of all the given items at once.
+     */
+    boolean[] isSeen(List<FeedItem> items) {
+        long[] ids = new long[items.size()];
+        for (int idx = 0; idx < ids.length; idx++) {
+            ids[idx] = items.get(idx).id();
+        }
+
+        return seenService.isSeen(ids);
     }
 
     private void createRecyclerViewClickListener() {
@@ -1042,6 +1073,9 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
         private final WeakReference<FeedFragment> parent;
         private final Feed feed;
 
+        // ids of the seen items of the feed, looked up in bulk instead of on every bind.
+        private final TLongSet seenItems = new TLongHashSet();
+
         FeedAdapter(FeedFragment fragment, Feed feed, boolean usersFavorites) {
             this.usersFavorites = usersFavorites;
             this.parent = new WeakReference<>(fragment);
@@ -1049,6 +1083,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
             this.feed.setFeedListener(this);
 
             setHasStableIds(true);
+            updateSeenItems(feed.getItems());
         }
 
         private void with(Action1<FeedFragment> action) {
@@ -1066,6 +1101,37 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
             return feed;
         }
 
+        /**
+         * Looks up the seen state of all items again, e.g. after the user viewed
+         * some posts. Only the items whose state changed are bound again.
+         */
+        void refreshSeenItems() {
+            List<FeedItem> items = feed.getItems();
+
+            with(fragment -> {
+                boolean[] seen = fragment.isSeen(items);
+                for (int idx = 0; idx < seen.length; idx++) {
+                    long id = items.get(idx).id();
+
+                    boolean changed = seen[idx] ? seenItems.add(id) : seenItems.remove(id);
+                    if (changed) {
+                        notifyItemChanged(idx);
+                    }
+                }
+            });
+        }
+
+        private void updateSeenItems(List<FeedItem> items) {
+            with(fragment -> {
+                boolean[] seen = fragment.isSeen(items);
+                for (int idx = 0; idx < seen.length; idx++) {
+                    if (seen[idx]) {
+                        seenItems.add(items.get(idx).id());
+                    }
+                }
+            });
+        }
+
         @SuppressLint("InflateParams")
         @Override
         public FeedItemViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
@@ -1099,7 +1165,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
                     holder.setIsRepost();
 
                 } else if (fragment.seenIndicatorStyle == IndicatorStyle.ICON
-                        && !usersFavorites && fragment.isSeen(item)) {
+                        && !usersFavorites && seenItems.contains(item.id())) {
 
                     holder.setIsSeen();
 
@@ -1124,23 +1190,32 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
         }
 
         @Override
-        public void onNewItems(List<FeedItem> newItems) {
-            // check if we prepended items to the list.
-            int prependCount = 0;
-            for (int idx = 0; idx < newItems.size(); idx++) {
-                if (newItems.get(idx).id() == getItemId(idx)) {
-                    prependCount++;
+        public void onNewItems(List<FeedItem> newItems, List<FeedChange> changes) {
+            updateSeenItems(newItems);
+
+            // only notify about the positions that actually changed, so
+            // that only the new cells need to be bound.
+            for (FeedChange change : changes) {
+                switch (change.type()) {
+                    case INSERTED:
+                        notifyItemRangeInserted(change.start(), change.count());
+                        break;
+
+                    case REPLACED:
+                        notifyItemRangeChanged(change.start(), change.count());
+                        break;
+
+                    case REMOVED:
+                        notifyItemRangeRemoved(change.start(), change.count());
+                        break;
                 }
             }
 
-            if (prependCount == 0) {
-                notifyDataSetChanged();
-            } else {
-                notifyItemRangeInserted(0, prependCount);
-            }
-
             // load meta data for the items.
             with(fragment -> {
+                // we might show cached items while still loading
+                fragment.removeBusyIndicator();
+
                 if (newItems.size() > 0) {
                     FeedItem mostRecentItem = Ordering.natural()
                             .onResultOf((Function<FeedItem, Long>) FeedItem::id)
@@ -1158,6 +1233,11 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
             notifyDataSetChanged();
         }
 
+        @Override
+        public void onItemsEvicted(FeedChange removed) {
+            notifyItemRangeRemoved(removed.start(), removed.count());
+        }
+
         @Override
         public void onWrongContentType() {
             with(FeedFragment::showWrongContentTypeInfo);
@@ -1198,7 +1278,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(items -> {
                     if (items.getItems().size() > 0) {
-                        List<Long> ids = Lists.transform(items.getItems(), Api.Feed.Item::getId);
+                        List<Long> ids = Lists.transform(items.getItems(), FeedItem::id);
                         cacheService.cacheReposts(ids);
 
                         // update feed adapter to show new 'repost' badges.
@@ -1349,11 +1429,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
         int offset = ((MergeRecyclerAdapter) recyclerView.getAdapter()).getOffset(feedAdapter).or(0);
 
         // look for the index of the item with the given id
-        return FluentIterable
-                .from(feedAdapter.getFeed().getItems())
-                .firstMatch(item -> item.id() == id)
-                .transform(item -> feedAdapter.getFeed().indexOf(item).or(-1))
-                .transform(idx -> idx + offset);
+        return feedAdapter.getFeed().indexOf(id).transform(idx -> idx + offset);
     }
 
     Optional<GridLayoutManager> getRecyclerViewLayoutManager() {
@@ -1367,7 +1443,25 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
         return info.getUser().getName().equalsIgnoreCase(userService.getName().orNull());
     }
 
+    /**
+     * Tells the loader which part of the feed is visible, so it can prefetch pages.
+     */
+    void updateFeedLoader(GridLayoutManager layoutManager, float rowsPerSecond) {
+        int offset = getMainAdapter().transform(adapter -> adapter.getOffset(feedAdapter).or(0)).or(0);
+        int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
+        int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+        if (firstVisibleItem == RecyclerView.NO_POSITION || lastVisibleItem == RecyclerView.NO_POSITION)
+            return;
+
+        loader.onScrolled(
+                Math.max(0, firstVisibleItem - offset), Math.max(0, lastVisibleItem - offset),
+                rowsPerSecond, layoutManager.getSpanCount());
+    }
+
     private final RecyclerView.OnScrollListener onScrollListener = new RecyclerView.OnScrollListener() {
+        private long lastScrollEventTime;
+        private float scrollVelocity;
+
         @Override
         public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
             if (scrollToolbar && getActivity() instanceof ToolbarActivity) {
@@ -1376,33 +1470,29 @@ public class FeedFragment extends BaseFragment implements FilterFragment, BackAw
             }
 
             ifPresent(getRecyclerViewLayoutManager(), layoutManager -> {
-                if (loader.isLoading())
-                    return;
+                // estimate the scroll velocity in rows per second. The cells are square,
+                // so the height of a row is the width of the view divided by the column count.
+                long now = SystemClock.uptimeMillis();
+                long elapsed = Math.max(1, now - lastScrollEventTime);
+                lastScrollEventTime = now;
 
-                Feed feed = feedAdapter.getFeed();
-                int totalItemCount = layoutManager.getItemCount();
+                int columnCount = layoutManager.getSpanCount();
+                float rowHeight = Math.max(1, recyclerView.getWidth() / (float) columnCount);
+                float rowsPerSecond = elapsed > 250 ? 0 : 1000.f * dy / elapsed / rowHeight;
 
-                if (dy > 0 && !feed.isAtEnd()) {
-                    int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
-                    if (totalItemCount > 12 && lastVisibleItem >= totalItemCount - 12) {
-                        logger.info("Request next page now");
-                        loader.next();
-                    }
-                }
+                // smooth out the velocity a bit
+                scrollVelocity = 0.7f * scrollVelocity + 0.3f * rowsPerSecond;
 
-                if (dy < 0 && !feed.isAtStart()) {
-                    int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
-                    if (totalItemCount > 12 && firstVisibleItem < 12) {
-                        logger.info("Request previous page now");
-                        loader.previous();
-                    }
-                }
+                updateFeedLoader(layoutManager, scrollVelocity);
             });
         }
 
         @Override
         public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
             if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                scrollVelocity = 0;
+                ifPresent(getRecyclerViewLayoutManager(), layoutManager -> updateFeedLoader(layoutManager, 0));
+
                 if (getActivity() instanceof ToolbarActivity) {
                     int y = estimateRecyclerViewScrollY(recyclerView).or(Integer.MAX_VALUE);
 
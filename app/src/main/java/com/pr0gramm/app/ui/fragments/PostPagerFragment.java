@@ -15,11 +15,14 @@ import com.pr0gramm.app.ActivityComponent;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.feed.Feed;
+import com.pr0gramm.app.feed.FeedChange;
 import com.pr0gramm.app.feed.FeedFilter;
 import com.pr0gramm.app.feed.FeedItem;
 import com.pr0gramm.app.feed.FeedLoader;
 import com.pr0gramm.app.feed.FeedService;
+import com.pr0gramm.app.feed.FeedSnapshotStore;
 import com.pr0gramm.app.feed.FeedType;
+import com.pr0gramm.app.services.MediaPrefetcher;
 import com.pr0gramm.app.ui.FilterFragment;
 import com.pr0gramm.app.ui.IdFragmentStatePagerAdapter;
 import com.pr0gramm.app.ui.MainActionHandler;
@@ -51,17 +54,28 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
     @Inject
     FeedService feedService;
 
+    @Inject
+    FeedSnapshotStore feedSnapshotStore;
+
+    @Inject
+    MediaPrefetcher mediaPrefetcher;
+
     @BindView(R.id.pager)
     ViewPager viewPager;
 
     private Feed feed;
     PostAdapter adapter;
 
+    // position of the item that was last saved to the arguments
+    private int savedPosition = -1;
+
     PostFragment activePostFragment;
 
     @Nullable
     private PreviewInfo previewInfo;
 
+    boolean reloadAroundStart;
+
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container,
                              @Nullable Bundle savedInstanceState) {
@@ -80,6 +94,7 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
 
         // get the feed to show and setup a loader to load more data
         feed = getArgumentFeed(savedInstanceState);
+        savedPosition = -1;
         FeedLoader loader = new FeedLoader(
                 FeedLoader.bindTo(bindToLifecycleAsync(), AndroidUtility::logToCrashlytics),
                 feedService, feed);
@@ -90,10 +105,39 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
             public void setPrimaryItem(ViewGroup container, int position, Object object) {
                 super.setPrimaryItem(container, position, object);
                 updateActiveItem((PostFragment) object);
-                saveStateToBundle(getArguments());
+
+                // this is called quite often, only save if the item really changed.
+                if (savedPosition != position) {
+                    savedPosition = position;
+
+                    // only remember the current item, the feed is persisted on pause.
+                    getArguments().putParcelable(ARG_START_ITEM, feed.at(position));
+
+                    mediaPrefetcher.update(feed, position);
+                }
+            }
+
+            @Override
+            public void onNewItems(List<FeedItem> newItems, List<FeedChange> changes) {
+                super.onNewItems(newItems, changes);
+
+                if (reloadAroundStart) {
+                    reloadAroundStart = false;
+                    makeItemCurrent(getArgumentStartItem(savedInstanceState));
+                }
             }
         };
 
+        if (feed.size() == 0) {
+            // the snapshot of the feed is not available anymore,
+            // load the items around the start item again.
+            FeedItem start = getArgumentStartItem(savedInstanceState);
+            logger.info("Feed snapshot is empty, loading items around {}", start.id());
+
+            reloadAroundStart = true;
+            loader.restart(Optional.of(start.id()));
+        }
+
         if (getActivity() instanceof ToolbarActivity) {
             ToolbarActivity activity = (ToolbarActivity) getActivity();
             activity.getScrollHideToolbarListener().reset();
@@ -135,6 +179,19 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         }
     }
 
+    @Override
+    public void onPause() {
+        // the view might be recreated from the arguments, e.g. when coming back from the back stack.
+        saveStateToBundle(getArguments());
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroyView() {
+        mediaPrefetcher.cancel();
+        super.onDestroyView();
+    }
+
     @Override
     public void onViewStateRestored(@Nullable Bundle savedInstanceState) {
         super.onViewStateRestored(savedInstanceState);
@@ -200,7 +257,7 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         if (encoded == null)
             encoded = getArguments().getBundle(ARG_FEED_PROXY);
 
-        return Feed.restore(checkNotNull(encoded, "No feed-proxy found"));
+        return Feed.restore(feedSnapshotStore, checkNotNull(encoded, "No feed-proxy found"));
     }
 
     /**
@@ -251,11 +308,11 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
     }
 
     void saveStateToBundle(Bundle outState) {
-        if (viewPager != null && feed != null) {
-            int position = viewPager.getCurrentItem();
+        if (viewPager != null && feed != null && feed.size() > 0) {
+            int position = Math.min(viewPager.getCurrentItem(), feed.size() - 1);
             FeedItem item = feed.at(position);
             outState.putParcelable(ARG_START_ITEM, item);
-            outState.putParcelable(ARG_FEED_PROXY, feed.persist(position));
+            outState.putParcelable(ARG_FEED_PROXY, feed.persist(feedSnapshotStore, position));
         }
     }
 
@@ -328,14 +385,19 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         }
 
         @Override
-        public void onNewItems(List<FeedItem> newItems) {
+        public void onNewItems(List<FeedItem> newItems, List<FeedChange> changes) {
             notifyDataSetChanged();
         }
 
         @Override
         public void onRemoveItems() {
-            // should not happen
-            throw new UnsupportedOperationException();
+            // only happens if the feed is reloaded after its snapshot got lost.
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void onItemsEvicted(FeedChange removed) {
+            notifyDataSetChanged();
         }
 
         @Override
@@ -344,9 +406,11 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         }
     }
 
-    public static PostPagerFragment newInstance(Feed feed, int idx, Optional<Long> commentId) {
+    public static PostPagerFragment newInstance(FeedSnapshotStore snapshotStore, Feed feed,
+                                                int idx, Optional<Long> commentId) {
+
         Bundle arguments = new Bundle();
-        arguments.putBundle(ARG_FEED_PROXY, feed.persist(idx));
+        arguments.putBundle(ARG_FEED_PROXY, feed.persist(snapshotStore, idx));
         arguments.putParcelable(ARG_START_ITEM, feed.at(idx));
         arguments.putLong(ARG_START_ITEM_COMMENT, commentId.or(-1L));
 
@@ -10,12 +10,12 @@ import com.pr0gramm.app.ActivityComponent;
 import com.pr0gramm.app.BuildConfig;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.services.SingleShotService;
 import com.pr0gramm.app.util.AndroidUtility;
 import com.pr0gramm.app.util.ErrorFormatting;
 import com.pr0gramm.app.util.PicassoDecoder;
 import com.pr0gramm.app.util.decoders.Decoders;
-import com.squareup.picasso.Downloader;
 import com.squareup.picasso.Picasso;
 
 import org.slf4j.Logger;
@@ -50,7 +50,7 @@ public class ImageMediaView extends MediaView {
     Picasso picasso;
 
     @Inject
-    Downloader downloader;
+    MediaCache mediaCache;
 
     @Inject
     SingleShotService singleShotService;
@@ -74,7 +74,7 @@ public class ImageMediaView extends MediaView {
         imageView.setMaxTileSize(4096);
 
         imageView.setBitmapDecoderFactory(() -> new PicassoDecoder(tag, picasso));
-        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(downloader));
+        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(mediaCache));
         imageView.setOnImageEventListener(new SubsamplingScaleImageView.DefaultOnImageEventListener() {
             @Override
             public void onImageLoaded() {
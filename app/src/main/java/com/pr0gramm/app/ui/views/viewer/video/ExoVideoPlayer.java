@@ -59,6 +59,7 @@ import com.jakewharton.rxbinding.view.RxView;
 import com.pr0gramm.app.Dagger;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.ui.views.AspectLayout;
 import com.pr0gramm.app.util.AndroidUtility;
 
@@ -69,8 +70,6 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.List;
 
-import okhttp3.OkHttpClient;
-
 import static com.google.common.collect.FluentIterable.from;
 import static com.pr0gramm.app.util.AndroidUtility.getMessageWithCauses;
 
@@ -496,8 +495,8 @@ public class ExoVideoPlayer extends RxVideoPlayer implements VideoPlayer, ExoPla
                 };
             } else {
                 logger.info("Got a remote file, using caching source.");
-                OkHttpClient httpClient = Dagger.appComponent(context).okHttpClient();
-                return new InputStreamCacheDataSource(context, httpClient, uri);
+                MediaCache mediaCache = Dagger.appComponent(context).mediaCache();
+                return new InputStreamCacheDataSource(mediaCache, uri);
             }
         }
     }
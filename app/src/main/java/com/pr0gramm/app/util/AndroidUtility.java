@@ -5,6 +5,7 @@ import android.animation.AnimatorListenerAdapter;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
@@ -21,6 +22,7 @@ import android.os.Looper;
 import android.support.annotation.ColorInt;
 import android.support.annotation.ColorRes;
 import android.support.annotation.DrawableRes;
+import android.support.v4.app.ActivityManagerCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.res.ResourcesCompat;
 import android.support.v4.graphics.drawable.DrawableCompat;
@@ -198,6 +200,14 @@ public class AndroidUtility {
         return ConnectivityManagerCompat.isActiveNetworkMetered(cm);
     }
 
+    /**
+     * Returns true, if this is a device with only a small heap available for the app.
+     */
+    public static boolean isLowMemoryDevice(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return ActivityManagerCompat.isLowRamDevice(am) || am.getMemoryClass() <= 64;
+    }
+
     /**
      * Gets the color tinted hq-icon
      */
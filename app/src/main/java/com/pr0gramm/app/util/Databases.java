@@ -1,6 +1,8 @@
 package com.pr0gramm.app.util;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
@@ -26,9 +28,19 @@ public class Databases {
         }
     }
 
+    @SuppressLint("NewApi")
+    public static boolean tableExists(SQLiteDatabase db, String name) {
+        try (Cursor cursor = db.rawQuery(
+                "SELECT 1 FROM sqlite_master WHERE type='table' AND name=?",
+                new String[]{name})) {
+
+            return cursor.moveToNext();
+        }
+    }
+
     public static class SqlBriteOpenHelper extends SQLiteOpenHelper {
         public SqlBriteOpenHelper(Context context) {
-            super(context, "pr0-sqlbrite", null, 4);
+            super(context, "pr0-sqlbrite", null, 6);
         }
 
         @Override
@@ -44,7 +56,7 @@ public class Databases {
 
     public static class PlainOpenHelper extends SQLiteOpenHelper {
         public PlainOpenHelper(Context context) {
-            super(context, "pr0gramm.db", null, 8);
+            super(context, "pr0gramm.db", null, 9);
         }
 
         @Override
@@ -3,15 +3,15 @@ package com.pr0gramm.app.util.decoders;
 import android.graphics.Bitmap;
 
 import com.davemorrissey.labs.subscaleview.decoder.ImageRegionDecoder;
-import com.squareup.picasso.Downloader;
+import com.pr0gramm.app.io.MediaCache;
 
 /**
  * A class
  */
 public class Decoders {
-    public static ImageRegionDecoder regionDecoder(Downloader downloader) {
+    public static ImageRegionDecoder regionDecoder(MediaCache mediaCache) {
         //noinspection unchecked
-        return new DownloadingRegionDecoder(downloader,
+        return new DownloadingRegionDecoder(mediaCache,
                 FallbackRegionDecoder.chain(
                         new AndroidRegionDecoder(Bitmap.Config.RGB_565),
                         new AndroidRegionDecoder(Bitmap.Config.ARGB_8888),
@@ -1,6 +1,5 @@
 package com.pr0gramm.app.util.decoders;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
@@ -8,34 +7,32 @@ import android.graphics.Rect;
 import android.net.Uri;
 
 import com.davemorrissey.labs.subscaleview.decoder.ImageRegionDecoder;
-import com.google.common.io.ByteStreams;
-import com.squareup.picasso.Downloader;
+import com.pr0gramm.app.io.MediaCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import static com.google.common.base.Preconditions.checkState;
 import static com.pr0gramm.app.util.AndroidUtility.toFile;
 
 /**
- * This decoder first downloads the image before starting to decode it.
+ * This decoder first downloads the image into the {@link MediaCache} before
+ * starting to decode it. The cached file is kept until the decoder is recycled.
  */
 public class DownloadingRegionDecoder implements ImageRegionDecoder {
     private static final Logger logger = LoggerFactory.getLogger("DownloadingRegionDecoder");
 
-    private final Downloader downloader;
+    private final MediaCache mediaCache;
     private final ImageRegionDecoder decoder;
 
     private File imageFile;
-    private boolean deleteImageOnRecycle;
+    private MediaCache.Entry entry;
 
-    public DownloadingRegionDecoder(Downloader downloader, ImageRegionDecoder decoder) {
-        this.downloader = downloader;
+    public DownloadingRegionDecoder(MediaCache mediaCache, ImageRegionDecoder decoder) {
+        this.mediaCache = mediaCache;
         this.decoder = decoder;
     }
 
@@ -46,20 +43,17 @@ public class DownloadingRegionDecoder implements ImageRegionDecoder {
         if ("file".equals(uri.getScheme())) {
             imageFile = toFile(uri);
         } else {
-            imageFile = File.createTempFile("image", ".tmp", context.getCacheDir());
-            deleteImageOnRecycle = true;
+            entry = mediaCache.get(uri);
 
             try {
-                downloadTo(downloader, uri, imageFile);
+                imageFile = entry.awaitFile();
 
             } catch (IOException error) {
-                logger.warn("Could not download image to temp file");
-
-                if (!imageFile.delete())
-                    logger.warn("Could not delete file");
+                logger.warn("Could not download image to cache");
+                cleanup();
 
                 // re-raise exception
-                throw new IOException("Could not download image to temp file", error);
+                throw new IOException("Could not download image to cache", error);
             }
         }
 
@@ -95,10 +89,10 @@ public class DownloadingRegionDecoder implements ImageRegionDecoder {
         }
     }
 
-    private void cleanup() {
-        if (deleteImageOnRecycle && imageFile.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            imageFile.delete();
+    private synchronized void cleanup() {
+        if (entry != null) {
+            entry.close();
+            entry = null;
         }
     }
 
@@ -107,14 +101,4 @@ public class DownloadingRegionDecoder implements ImageRegionDecoder {
         cleanup();
         super.finalize();
     }
-
-    @SuppressLint("NewApi")
-    private static void downloadTo(Downloader downloader, Uri uri, File imageFile) throws IOException {
-        // download to temp file. not nice, but useful :/
-        try (InputStream inputStream = downloader.load(uri, 0).getInputStream()) {
-            try (FileOutputStream output = new FileOutputStream(imageFile)) {
-                ByteStreams.copy(inputStream, output);
-            }
-        }
-    }
 }
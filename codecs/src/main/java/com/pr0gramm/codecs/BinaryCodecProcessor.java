@@ -0,0 +1,348 @@
+package com.pr0gramm.codecs;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the codecs for all types annotated with {@link GenerateCodec}.
+ */
+@SupportedAnnotationTypes("com.pr0gramm.codecs.GenerateCodec")
+public class BinaryCodecProcessor extends AbstractProcessor {
+    private static final String VALUE_CODEC = "com.pr0gramm.app.parcel.core.ValueCodec";
+    private static final String INSTANT = "org.joda.time.Instant";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Map<TypeElement, List<TypeElement>> typesByEnclosing = new LinkedHashMap<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(GenerateCodec.class)) {
+            Element enclosing = element.getEnclosingElement();
+            if (!(element instanceof TypeElement) || enclosing.getKind() != ElementKind.INTERFACE
+                    && enclosing.getKind() != ElementKind.CLASS
+                    || enclosing.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+
+                error(element, "@GenerateCodec types must be nested in a top level type");
+                continue;
+            }
+
+            List<TypeElement> types = typesByEnclosing.get(enclosing);
+            if (types == null) {
+                types = new ArrayList<>();
+                typesByEnclosing.put((TypeElement) enclosing, types);
+            }
+
+            types.add((TypeElement) element);
+        }
+
+        for (Map.Entry<TypeElement, List<TypeElement>> entry : typesByEnclosing.entrySet()) {
+            try {
+                generate(entry.getKey(), entry.getValue());
+
+            } catch (UnsupportedTypeException err) {
+                error(err.element, err.getMessage());
+
+            } catch (IOException err) {
+                error(entry.getKey(), "Could not write codecs: " + err);
+            }
+        }
+
+        return true;
+    }
+
+    private void generate(TypeElement enclosing, List<TypeElement> types) throws IOException {
+        String packageName = ((PackageElement) enclosing.getEnclosingElement()).getQualifiedName().toString();
+        String className = "BinaryCodecs" + enclosing.getSimpleName();
+
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(packageName).append(";\n\n");
+        source.append("/**\n");
+        source.append(" * Binary codecs for the types of {@link ").append(enclosing.getSimpleName()).append("}.\n");
+        source.append(" * Generated by ").append(getClass().getSimpleName()).append(", do not edit.\n");
+        source.append(" */\n");
+        source.append("public final class ").append(className).append(" {\n");
+        source.append("    private ").append(className).append("() {\n    }\n");
+
+        for (TypeElement type : types) {
+            appendCodec(source, enclosing, types, type);
+        }
+
+        // lists use the codecs above, so they must be initialized after them.
+        for (TypeElement type : types) {
+            String name = type.getQualifiedName().toString();
+            source.append("\n    public static final ").append(VALUE_CODEC)
+                    .append("<java.util.List<").append(name).append(">> ")
+                    .append(constantName(type)).append("_LIST = listOf(").append(constantName(type)).append(");\n");
+        }
+
+        appendHelpers(source);
+        source.append("}\n");
+
+        Element[] originating = types.toArray(new Element[types.size()]);
+        try (Writer writer = processingEnv.getFiler()
+                .createSourceFile(packageName + "." + className, originating)
+                .openWriter()) {
+
+            writer.write(source.toString());
+        }
+    }
+
+    private void appendCodec(StringBuilder source, TypeElement enclosing,
+                             List<TypeElement> types, TypeElement type) {
+
+        String name = type.getQualifiedName().toString();
+        String builder = ((PackageElement) enclosing.getEnclosingElement()).getQualifiedName()
+                + ".Immutable" + enclosing.getSimpleName() + "." + type.getSimpleName() + ".builder()";
+
+        StringBuilder write = new StringBuilder();
+        StringBuilder read = new StringBuilder();
+        for (ExecutableElement accessor : accessorsOf(type)) {
+            String value = "value." + accessor.getSimpleName() + "()";
+            Codec codec = codecOf(types, accessor);
+
+            write.append("            ").append(codec.write(value)).append(";\n");
+            read.append("                    .").append(propertyName(accessor))
+                    .append("(").append(codec.read()).append(")\n");
+        }
+
+        source.append("\n    public static final ").append(VALUE_CODEC).append("<").append(name).append("> ")
+                .append(constantName(type)).append(" = new ").append(VALUE_CODEC).append("<").append(name).append(">() {\n");
+
+        source.append("        @Override\n");
+        source.append("        public void write(java.io.DataOutput output, ").append(name)
+                .append(" value) throws java.io.IOException {\n");
+        source.append(write);
+        source.append("        }\n\n");
+
+        source.append("        @Override\n");
+        source.append("        public ").append(name)
+                .append(" read(java.io.DataInput input) throws java.io.IOException {\n");
+        source.append("            return ").append(builder).append("\n");
+        source.append(read);
+        source.append("                    .build();\n");
+        source.append("        }\n");
+        source.append("    };\n");
+    }
+
+    private static void appendHelpers(StringBuilder source) {
+        source.append("\n    private static <T> ").append(VALUE_CODEC).append("<java.util.List<T>> listOf(final ")
+                .append(VALUE_CODEC).append("<T> codec) {\n");
+        source.append("        return new ").append(VALUE_CODEC).append("<java.util.List<T>>() {\n");
+        source.append("            @Override\n");
+        source.append("            public void write(java.io.DataOutput output, java.util.List<T> values) throws java.io.IOException {\n");
+        source.append("                output.writeInt(values.size());\n");
+        source.append("                for (T value : values) {\n");
+        source.append("                    codec.write(output, value);\n");
+        source.append("                }\n");
+        source.append("            }\n\n");
+        source.append("            @Override\n");
+        source.append("            public java.util.List<T> read(java.io.DataInput input) throws java.io.IOException {\n");
+        source.append("                int size = input.readInt();\n\n");
+        source.append("                com.google.common.collect.ImmutableList.Builder<T> values = com.google.common.collect.ImmutableList.builder();\n");
+        source.append("                for (int idx = 0; idx < size; idx++) {\n");
+        source.append("                    values.add(codec.read(input));\n");
+        source.append("                }\n\n");
+        source.append("                return values.build();\n");
+        source.append("            }\n");
+        source.append("        };\n");
+        source.append("    }\n");
+
+        // strings are written with their length, as writeUTF is limited to 64k
+        source.append("\n    private static void writeString(java.io.DataOutput output, String value) throws java.io.IOException {\n");
+        source.append("        if (value == null) {\n");
+        source.append("            output.writeInt(-1);\n");
+        source.append("            return;\n");
+        source.append("        }\n\n");
+        source.append("        byte[] bytes = value.getBytes(com.google.common.base.Charsets.UTF_8);\n");
+        source.append("        output.writeInt(bytes.length);\n");
+        source.append("        output.write(bytes);\n");
+        source.append("    }\n");
+
+        source.append("\n    private static String readString(java.io.DataInput input) throws java.io.IOException {\n");
+        source.append("        int length = input.readInt();\n");
+        source.append("        if (length < 0)\n");
+        source.append("            return null;\n\n");
+        source.append("        byte[] bytes = new byte[length];\n");
+        source.append("        input.readFully(bytes);\n");
+        source.append("        return new String(bytes, com.google.common.base.Charsets.UTF_8);\n");
+        source.append("    }\n");
+    }
+
+    /**
+     * Returns all abstract accessors of the type, including the inherited ones,
+     * ordered by their name, so the order does not depend on the compiler.
+     */
+    private List<ExecutableElement> accessorsOf(TypeElement type) {
+        Map<String, ExecutableElement> accessors = new LinkedHashMap<>();
+        for (Element member : processingEnv.getElementUtils().getAllMembers(type)) {
+            if (member.getKind() != ElementKind.METHOD || !member.getModifiers().contains(Modifier.ABSTRACT))
+                continue;
+
+            ExecutableElement method = (ExecutableElement) member;
+            if (method.getParameters().isEmpty() && method.getReturnType().getKind() != TypeKind.VOID) {
+                accessors.put(method.getSimpleName().toString(), method);
+            }
+        }
+
+        List<ExecutableElement> result = new ArrayList<>(accessors.values());
+        Collections.sort(result, new Comparator<ExecutableElement>() {
+            @Override
+            public int compare(ExecutableElement lhs, ExecutableElement rhs) {
+                return lhs.getSimpleName().toString().compareTo(rhs.getSimpleName().toString());
+            }
+        });
+
+        return result;
+    }
+
+    private Codec codecOf(List<TypeElement> types, ExecutableElement accessor) {
+        TypeMirror type = accessor.getReturnType();
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return new Codec("output.writeBoolean(%s)", "input.readBoolean()");
+            case BYTE:
+                return new Codec("output.writeByte(%s)", "input.readByte()");
+            case SHORT:
+                return new Codec("output.writeShort(%s)", "input.readShort()");
+            case CHAR:
+                return new Codec("output.writeChar(%s)", "input.readChar()");
+            case INT:
+                return new Codec("output.writeInt(%s)", "input.readInt()");
+            case LONG:
+                return new Codec("output.writeLong(%s)", "input.readLong()");
+            case FLOAT:
+                return new Codec("output.writeFloat(%s)", "input.readFloat()");
+            case DOUBLE:
+                return new Codec("output.writeDouble(%s)", "input.readDouble()");
+
+            case DECLARED:
+                DeclaredType declared = (DeclaredType) type;
+                String name = ((TypeElement) declared.asElement()).getQualifiedName().toString();
+
+                if (name.equals("java.lang.String"))
+                    return new Codec("writeString(output, %s)", "readString(input)");
+
+                if (name.equals(INSTANT))
+                    return new Codec("output.writeLong(%s.getMillis())", "new " + INSTANT + "(input.readLong())");
+
+                if (name.equals("java.util.List") && declared.getTypeArguments().size() == 1) {
+                    TypeElement element = codecType(types, declared.getTypeArguments().get(0));
+                    if (element != null) {
+                        String constant = constantName(element) + "_LIST";
+                        return new Codec(constant + ".write(output, %s)", constant + ".read(input)");
+                    }
+                }
+
+                TypeElement element = codecType(types, declared);
+                if (element != null) {
+                    String constant = constantName(element);
+                    return new Codec(constant + ".write(output, %s)", constant + ".read(input)");
+                }
+        }
+
+        throw new UnsupportedTypeException(accessor, "Type " + type + " of "
+                + accessor.getSimpleName() + " is not supported by @GenerateCodec");
+    }
+
+    /**
+     * Returns the type with a generated codec for the given type mirror, or null.
+     */
+    private static TypeElement codecType(List<TypeElement> types, TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED)
+            return null;
+
+        Element element = ((DeclaredType) type).asElement();
+        return types.contains(element) ? (TypeElement) element : null;
+    }
+
+    /**
+     * The name of the builder method, using the accessor style of the api types.
+     */
+    private static String propertyName(ExecutableElement accessor) {
+        String name = accessor.getSimpleName().toString();
+        for (String prefix : new String[]{"get", "is"}) {
+            if (name.length() > prefix.length() && name.startsWith(prefix)
+                    && Character.isUpperCase(name.charAt(prefix.length()))) {
+
+                return Character.toLowerCase(name.charAt(prefix.length())) + name.substring(prefix.length() + 1);
+            }
+        }
+
+        return name;
+    }
+
+    /**
+     * Converts "NewComment" to "NEW_COMMENT".
+     */
+    private static String constantName(TypeElement type) {
+        String name = type.getSimpleName().toString();
+
+        StringBuilder result = new StringBuilder();
+        for (int idx = 0; idx < name.length(); idx++) {
+            char ch = name.charAt(idx);
+            if (idx > 0 && Character.isUpperCase(ch)) {
+                result.append('_');
+            }
+
+            result.append(Character.toUpperCase(ch));
+        }
+
+        return result.toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static final class Codec {
+        private final String write;
+        private final String read;
+
+        Codec(String write, String read) {
+            this.write = write;
+            this.read = read;
+        }
+
+        String write(String value) {
+            return String.format(write, value);
+        }
+
+        String read() {
+            return read;
+        }
+    }
+
+    private static final class UnsupportedTypeException extends RuntimeException {
+        final Element element;
+
+        UnsupportedTypeException(Element element, String message) {
+            super(message);
+            this.element = element;
+        }
+    }
+}
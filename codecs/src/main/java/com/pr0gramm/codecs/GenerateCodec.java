@@ -0,0 +1,21 @@
+package com.pr0gramm.codecs;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a direct binary codec for an immutable value type. The type must be nested in a
+ * type annotated with {@code @Value.Enclosing}. All codecs of the nested types are generated
+ * into one class named {@code BinaryCodecs<Enclosing>}, next to the {@code GsonAdapters}
+ * generated by immutables.
+ * <p>
+ * Every abstract accessor of the type is written, so the codec can not miss a property.
+ * Supported are primitives, strings, joda instants, other types with a codec and lists of
+ * those. The processor fails on any other type.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateCodec {
+}